@@ -35,6 +35,7 @@ public class ChatSession {
 		private String username;
 		private int clientID;
 		private byte[] icon;
+		private boolean isActive;
 
 		public Member() {}
 		
@@ -43,6 +44,11 @@ public class ChatSession {
 			this.clientID = clientID;
 			this.icon = icon.clone();
 		}
+		
+		public Member(String username, int clientID, byte[] icon, boolean isActive) {
+			this(username, clientID, icon);
+			this.isActive = isActive;
+		}
 
 		public void setUsername(String username) {
 			this.username = username;
@@ -56,6 +62,10 @@ public class ChatSession {
 			this.icon = icon.clone();
 		}
 		
+		public void setIsActive(boolean isActive) {
+			this.isActive = isActive;
+		}
+		
 		public String getUsername() {
 			return username;
 		}
@@ -67,6 +77,10 @@ public class ChatSession {
 		public byte[] getIcon() {
 			return icon.clone();
 		}
+		
+		public boolean isActive() {
+			return isActive;
+		}
 
 		@Override
 		public int hashCode() {
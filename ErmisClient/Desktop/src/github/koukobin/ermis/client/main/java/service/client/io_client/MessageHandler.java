@@ -36,6 +36,7 @@ import github.koukobin.ermis.common.message_types.ClientMessageType;
 import github.koukobin.ermis.common.message_types.ContentType;
 import github.koukobin.ermis.common.message_types.Message;
 import github.koukobin.ermis.common.message_types.ServerMessageType;
+import github.koukobin.ermis.common.util.EmptyArrays;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
@@ -54,6 +55,7 @@ public abstract class MessageHandler implements AutoCloseable {
 	private byte[] accountIcon;
 	
 	private Map<Integer, ChatSession> chatSessionIDSToChatSessions = new HashMap<>();
+	private Map<String, byte[]> iconHashesToIcons = new HashMap<>();
 	private List<ChatSession> chatSessions = new ArrayList<>();
 	private List<ChatRequest> chatRequests = new ArrayList<>();
 
@@ -307,6 +309,19 @@ public abstract class MessageHandler implements AutoCloseable {
 			out.write(payload);
 		}
 
+		public void fetchUserIcons(List<Integer> clientIDS) throws IOException {
+			
+			ByteBuf payload = Unpooled.buffer();
+			payload.writeInt(ClientMessageType.COMMAND.id);
+			payload.writeInt(ClientCommandType.FETCH_USER_ICONS.id);
+			payload.writeInt(clientIDS.size());
+			for (int clientID : clientIDS) {
+				payload.writeInt(clientID);
+			}
+			
+			out.write(payload);
+		}
+
 	}
 	
 	/**
@@ -395,6 +410,68 @@ public abstract class MessageHandler implements AutoCloseable {
 							
 							messageReceived(message, chatSession.getChatSessionIndex());
 						}
+						case PRESENCE_UPDATES -> {
+							
+							int updatesSize = msg.readInt();
+							for (int i = 0; i < updatesSize; i++) {
+								
+								int chatSessionID = msg.readInt();
+								int clientID = msg.readInt();
+								boolean isOnline = msg.readBoolean();
+								
+								ChatSession chatSession = chatSessionIDSToChatSessions.get(chatSessionID);
+								
+								if (chatSession == null) {
+									continue;
+								}
+								
+								for (ChatSession.Member member : chatSession.getMembers()) {
+									if (member.getClientID() == clientID) {
+										member.setIsActive(isOnline);
+									}
+								}
+							}
+							
+							chatSessionsReceived(chatSessions);
+						}
+						case MEMBER_RENAMED -> {
+							
+							int chatSessionID = msg.readInt();
+							int clientID = msg.readInt();
+							
+							byte[] usernameBytes = new byte[msg.readableBytes()];
+							msg.readBytes(usernameBytes);
+							
+							ChatSession chatSession = chatSessionIDSToChatSessions.get(chatSessionID);
+							
+							if (chatSession != null) {
+								for (ChatSession.Member member : chatSession.getMembers()) {
+									if (member.getClientID() == clientID) {
+										member.setUsername(new String(usernameBytes));
+									}
+								}
+								
+								chatSessionsReceived(chatSessions);
+							}
+						}
+						case MESSAGES_MISSED -> {
+							
+							// The history of these chat sessions is fetched anew, since messages
+							// broadcast to them were dropped
+							int chatSessionsSize = msg.readInt();
+							for (int i = 0; i < chatSessionsSize; i++) {
+								
+								ChatSession chatSession = chatSessionIDSToChatSessions.get(msg.readInt());
+								
+								if (chatSession == null || !chatSession.haveChatMessagesBeenCached()) {
+									continue;
+								}
+								
+								chatSession.getMessages().clear();
+								chatSession.setHaveChatMessagesBeenCached(false);
+								getCommands().fetchWrittenText(chatSession.getChatSessionIndex());
+							}
+						}
 						case COMMAND_RESULT -> {
 
 							ClientCommandResultType commandResult = ClientCommandResultType.fromId(msg.readInt());
@@ -427,6 +504,9 @@ public abstract class MessageHandler implements AutoCloseable {
 
 								chatSessions.clear();
 								
+								// Members whose icons have not been fetched yet
+								List<Integer> clientIDSWithoutIcons = new ArrayList<>();
+								
 								int chatSessionsSize = msg.readInt();
 								for (int i = 0; i < chatSessionsSize; i++) {
 
@@ -442,16 +522,25 @@ public abstract class MessageHandler implements AutoCloseable {
 									for (int j = 0; j < membersSize; j++) {
 
 										int clientID = msg.readInt();
-										@SuppressWarnings("unused")
 										boolean isActive = msg.readBoolean();
 
 										byte[] usernameBytes = new byte[msg.readInt()];
 										msg.readBytes(usernameBytes);
 										
-										byte[] iconBytes = new byte[msg.readInt()];
-										msg.readBytes(iconBytes);
-
-										members.add(new ChatSession.Member(new String(usernameBytes), clientID, iconBytes));
+										byte[] iconHashBytes = new byte[msg.readInt()];
+										msg.readBytes(iconHashBytes);
+										
+										byte[] iconBytes = iconHashesToIcons.get(new String(iconHashBytes));
+										
+										if (iconBytes == null) {
+											iconBytes = EmptyArrays.EMPTY_BYTE_ARRAY;
+											
+											if (iconHashBytes.length > 0 && !clientIDSWithoutIcons.contains(clientID)) {
+												clientIDSWithoutIcons.add(clientID);
+											}
+										}
+
+										members.add(new ChatSession.Member(new String(usernameBytes), clientID, iconBytes, isActive));
 									}
 
 									chatSession.setMembers(members);
@@ -461,6 +550,36 @@ public abstract class MessageHandler implements AutoCloseable {
 								}
 								
 								chatSessionsReceived(chatSessions);
+								
+								if (!clientIDSWithoutIcons.isEmpty()) {
+									getCommands().fetchUserIcons(clientIDSWithoutIcons);
+								}
+							}
+							case GET_USER_ICONS -> {
+								
+								int iconsSize = msg.readInt();
+								for (int i = 0; i < iconsSize; i++) {
+									
+									int clientID = msg.readInt();
+									
+									byte[] iconHashBytes = new byte[msg.readInt()];
+									msg.readBytes(iconHashBytes);
+									
+									byte[] iconBytes = new byte[msg.readInt()];
+									msg.readBytes(iconBytes);
+									
+									iconHashesToIcons.put(new String(iconHashBytes), iconBytes);
+									
+									for (ChatSession chatSession : chatSessions) {
+										for (ChatSession.Member member : chatSession.getMembers()) {
+											if (member.getClientID() == clientID) {
+												member.setIcon(iconBytes);
+											}
+										}
+									}
+								}
+								
+								chatSessionsReceived(chatSessions);
 							}
 							case GET_CHAT_REQUESTS -> {
 								
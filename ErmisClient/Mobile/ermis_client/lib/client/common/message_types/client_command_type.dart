@@ -33,6 +33,7 @@ enum ClientCommandType {
   fetchClientId(CommandLevel.light, 201),
   fetchUserDevices(CommandLevel.heavy, 202),
   fetchAccountIcon(CommandLevel.heavy, 203),
+  fetchUserIcons(CommandLevel.heavy, 204),
 
   // Chat Management
   fetchChatRequests(CommandLevel.light, 300),
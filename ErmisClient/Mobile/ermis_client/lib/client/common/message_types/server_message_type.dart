@@ -21,7 +21,19 @@ enum ServerMessageType {
   messageSuccefullySent(1),
   voiceCallIncoming(2),
   serverMessageInfo(3),
-  commandResult(4);
+  commandResult(4),
+
+  /// Broadcasts of the given chat sessions were dropped while the client could
+  /// not keep up; of the form [number of chat sessions]([chat session id])...
+  messagesMissed(7),
+
+  /// Members of the client's chat sessions who went online or offline; of the
+  /// form [number of updates]([chat session id][client id][is online])...
+  presenceUpdates(8),
+
+  /// A member of one of the client's chat sessions changed his username; of the
+  /// form [chat session id][client id][username]
+  memberRenamed(9);
 
   final int id;
   const ServerMessageType(this.id);
@@ -156,6 +156,7 @@ class MessageHandler {
   final List<UserDeviceInfo> _userDevices = [];
 
   final Map<int, ChatSession> _chatSessionIDSToChatSessions = {};
+  final Map<String, Uint8List> _iconHashesToIcons = {};
   late List<ChatSession>? _chatSessions;
   late List<ChatRequest>? _chatRequests;
 
@@ -312,6 +313,10 @@ class MessageHandler {
           break;
         case ClientCommandResultType.getChatSessions:
           _chatSessions = [];
+
+          // Members whose icons have not been fetched yet
+          Set<int> clientIDSWithoutIcons = {};
+
           int chatSessionsSize = msg.readInt32();
           for (int i = 0; i < chatSessionsSize; i++) {
             int chatSessionIndex = i;
@@ -328,7 +333,16 @@ class MessageHandler {
               int usernameLength = msg.readInt32();
               String username =
                   String.fromCharCodes(msg.readBytes(usernameLength));
-              Uint8List iconBytes = msg.readBytes(msg.readInt32());
+              String iconHash =
+                  String.fromCharCodes(msg.readBytes(msg.readInt32()));
+
+              Uint8List? iconBytes = _iconHashesToIcons[iconHash];
+              if (iconBytes == null) {
+                iconBytes = Uint8List(0);
+                if (iconHash.isNotEmpty) {
+                  clientIDSWithoutIcons.add(memberClientID);
+                }
+              }
 
               members
                   .add(Member(username, memberClientID, iconBytes, isActive));
@@ -341,6 +355,32 @@ class MessageHandler {
           for (final callback in callBacks._chatSessionsCallbacks) {
             callback(chatSessions!);
           }
+
+          if (clientIDSWithoutIcons.isNotEmpty) {
+            commands.fetchUserIcons(clientIDSWithoutIcons.toList());
+          }
+          break;
+        case ClientCommandResultType.getUserIcons:
+          int iconsSize = msg.readInt32();
+          for (int i = 0; i < iconsSize; i++) {
+            int memberClientID = msg.readInt32();
+            String iconHash =
+                String.fromCharCodes(msg.readBytes(msg.readInt32()));
+            Uint8List iconBytes = msg.readBytes(msg.readInt32());
+
+            _iconHashesToIcons[iconHash] = iconBytes;
+
+            for (final chatSession in _chatSessions ?? <ChatSession>[]) {
+              for (final member in chatSession.getMembers) {
+                if (member.clientID == memberClientID) {
+                  member.setIcon(iconBytes);
+                }
+              }
+            }
+          }
+          for (final callback in callBacks._chatSessionsCallbacks) {
+            callback(chatSessions!);
+          }
           break;
         case ClientCommandResultType.getChatRequests:
           _chatRequests = [];
@@ -536,6 +576,68 @@ class MessageHandler {
             callback(message, chatSession.chatSessionIndex);
           }
           break;
+        case ServerMessageType.presenceUpdates:
+          int updatesSize = msg.readInt32();
+          for (int i = 0; i < updatesSize; i++) {
+            int chatSessionID = msg.readInt32();
+            int memberClientID = msg.readInt32();
+            bool isOnline = msg.readBoolean();
+
+            ChatSession? chatSession =
+                _chatSessionIDSToChatSessions[chatSessionID];
+            if (chatSession == null) {
+              continue;
+            }
+
+            for (final member in chatSession.getMembers) {
+              if (member.clientID == memberClientID) {
+                member.setIsActive(isOnline);
+              }
+            }
+          }
+          if (_chatSessions != null) {
+            for (final callback in callBacks._chatSessionsCallbacks) {
+              callback(_chatSessions!);
+            }
+          }
+          break;
+        case ServerMessageType.memberRenamed:
+          int chatSessionID = msg.readInt32();
+          int memberClientID = msg.readInt32();
+          String username = utf8.decode(msg.readBytes(msg.readableBytes));
+
+          ChatSession? chatSession =
+              _chatSessionIDSToChatSessions[chatSessionID];
+          if (chatSession == null) {
+            break;
+          }
+
+          for (final member in chatSession.getMembers) {
+            if (member.clientID == memberClientID) {
+              member.setUsername(username);
+            }
+          }
+          for (final callback in callBacks._chatSessionsCallbacks) {
+            callback(_chatSessions!);
+          }
+          break;
+        case ServerMessageType.messagesMissed:
+          // The history of these chat sessions is fetched anew, since messages
+          // broadcast to them were dropped
+          int chatSessionsSize = msg.readInt32();
+          for (int i = 0; i < chatSessionsSize; i++) {
+            ChatSession? chatSession =
+                _chatSessionIDSToChatSessions[msg.readInt32()];
+            if (chatSession == null ||
+                !chatSession.haveChatMessagesBeenCached) {
+              continue;
+            }
+
+            chatSession.setMessages([]);
+            chatSession.setHaveChatMessagesBeenCached(false);
+            commands.fetchWrittenText(chatSession.chatSessionIndex);
+          }
+          break;
         case ServerMessageType.commandResult:
           final commandResult = ClientCommandResultType.fromId(msg.readInt32());
           handleCommandResult(commandResult);
@@ -782,6 +884,17 @@ class Commands {
     out.write(payload);
   }
 
+  void fetchUserIcons(List<int> clientIDS) {
+    ByteBuf payload = ByteBuf.smallBuffer(growable: true);
+    payload.writeInt(ClientMessageType.command.id);
+    payload.writeInt(ClientCommandType.fetchUserIcons.id);
+    payload.writeInt(clientIDS.length);
+    for (final clientID in clientIDS) {
+      payload.writeInt(clientID);
+    }
+    out.write(payload);
+  }
+
   void deleteAccount(String emailAddress, String password) {
     ByteBuf payload = ByteBuf.smallBuffer();
     payload.writeInt(ClientMessageType.command.id);
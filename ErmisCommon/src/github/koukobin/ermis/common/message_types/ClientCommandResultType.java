@@ -35,16 +35,20 @@ public enum ClientCommandResultType {
     GET_CLIENT_ID(201),
     FETCH_USER_DEVICES(202),
     FETCH_ACCOUNT_ICON(203),
+    GET_USER_ICONS(204),
     
     // Chat Management
     GET_CHAT_REQUESTS(300),
     GET_CHAT_SESSIONS(301),
     GET_WRITTEN_TEXT(302),
     DELETE_CHAT_MESSAGE(303),
+    GET_MESSAGES_BEFORE(304),
     
     // File Management
     DOWNLOAD_FILE(400),
     DOWNLOAD_IMAGE(401),
+    STREAM_FILE(402),
+    FETCH_THUMBNAIL(403),
     
     // External Pages
     GET_DONATION_PAGE(500),
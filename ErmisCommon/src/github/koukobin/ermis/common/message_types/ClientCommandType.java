@@ -42,6 +42,20 @@ public enum ClientCommandType {
 	FETCH_USER_DEVICES(CommandLevel.HEAVY, 202),
 	FETCH_ACCOUNT_ICON(CommandLevel.HEAVY, 203),
 
+	/**
+	 * Fetches the icons of members of the client's chat sessions; which
+	 * {@link ClientCommandResultType#GET_CHAT_SESSIONS} only identifies by the
+	 * SHA-256 of their content, so that icons the client already has are not
+	 * fetched again.
+	 * 
+	 * Arguments: [number of clients]([client id])...
+	 * 
+	 * The server replies with a {@link ClientCommandResultType#GET_USER_ICONS}
+	 * result of the form [number of icons]([client id][icon hash length][icon
+	 * hash][icon length][icon])...
+	 */
+	FETCH_USER_ICONS(CommandLevel.HEAVY, 204),
+
 	// Chat Management
 	FETCH_CHAT_REQUESTS(CommandLevel.LIGHT, 300),
 	FETCH_CHAT_SESSIONS(CommandLevel.LIGHT, 301),
@@ -55,6 +69,47 @@ public enum ClientCommandType {
 	DOWNLOAD_IMAGE(CommandLevel.HEAVY, 309),
 	START_VOICE_CALL(CommandLevel.HEAVY, 310),
 
+	/**
+	 * Downloads a file in chunks rather than as a single message, optionally
+	 * starting from an offset so that an interrupted download can be resumed.
+	 * 
+	 * Arguments: [chat session index or id][message id][offset (long)][length (long); -1 for the rest of the file]
+	 * 
+	 * The server first replies with a {@link ClientCommandResultType#STREAM_FILE}
+	 * result of the form [message id][file size (long)][offset (long)][length (long)][file name length][file name],
+	 * followed by {@link ServerMessageType#FILE_DOWNLOAD_CHUNK} messages of the form
+	 * [message id][offset (long)][bytes] until length bytes have been sent.
+	 */
+	STREAM_FILE(CommandLevel.HEAVY, 311),
+
+	/**
+	 * Fetches a downscaled variant of an image, so that it can be displayed
+	 * without downloading the original.
+	 * 
+	 * Arguments: [chat session index or id][message id][max dimension wanted (pixels)]
+	 * 
+	 * The server replies with a {@link ClientCommandResultType#FETCH_THUMBNAIL}
+	 * result of the form [message id][dimension][JPEG bytes], where dimension is
+	 * that of the smallest variant not smaller than the one wanted - or the
+	 * largest variant otherwise. No bytes are sent if the file is not an image
+	 * the server can read.
+	 */
+	FETCH_THUMBNAIL(CommandLevel.HEAVY, 312),
+
+	/**
+	 * Fetches the messages of a chat session preceding a given message, which
+	 * unlike FETCH_WRITTEN_TEXT remains correct when messages are deleted.
+	 * 
+	 * Arguments: [chat session index or id][message id; -1 for the newest messages][max number of messages]
+	 * 
+	 * The server replies with a {@link ClientCommandResultType#GET_MESSAGES_BEFORE}
+	 * result of the form [chat session index or id][message id][messages], where
+	 * messages are in ascending order and of the same form as those of
+	 * {@link ClientCommandResultType#GET_WRITTEN_TEXT}. The id of the oldest of
+	 * them is to be passed on to fetch the page before.
+	 */
+	FETCH_MESSAGES_BEFORE(CommandLevel.HEAVY, 313),
+
 	// External Pages
 	REQUEST_DONATION_PAGE(CommandLevel.LIGHT, 400),
 	REQUEST_SOURCE_CODE_PAGE(CommandLevel.LIGHT, 401);
@@ -26,7 +26,15 @@ import github.koukobin.ermis.common.util.EnumIntConverter;
  *
  */
 public enum ClientMessageType {
-	CLIENT_CONTENT(0), COMMAND(1);
+	CLIENT_CONTENT(0), COMMAND(1), FILE_UPLOAD(2),
+	
+	/*
+	 * Same as the above, except that chat sessions are addressed by their id
+	 * rather than by their index in the list returned by FETCH_CHAT_SESSIONS;
+	 * which, unlike the index, does not change when other chat sessions are
+	 * added or deleted.
+	 */
+	CLIENT_CONTENT_BY_ID(3), COMMAND_BY_ID(4), FILE_UPLOAD_BY_ID(5);
 	
 	private static final HashMap<Integer, ClientMessageType> values;
 	
@@ -43,6 +51,10 @@ public enum ClientMessageType {
         this.id = id;
     }
 
+	public boolean addressesChatSessionsByID() {
+		return this == CLIENT_CONTENT_BY_ID || this == COMMAND_BY_ID || this == FILE_UPLOAD_BY_ID;
+	}
+
 	public static ClientMessageType fromId(int id) {
 		return EnumIntConverter.fromId(values, id);
 	}
@@ -0,0 +1,62 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.common.message_types;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.Collectors;
+
+import github.koukobin.ermis.common.util.EnumIntConverter;
+
+/**
+ * Stages of a chunked file upload ({@link ClientMessageType#FILE_UPLOAD}).
+ * 
+ * <ul>
+ * <li>BEGIN: [content type][chat session index][file size (long)][file name length][file name]</li>
+ * <li>CHUNK: [upload id][offset (long)][bytes]</li>
+ * <li>COMMIT: [upload id]</li>
+ * <li>RESUME: [upload id]</li>
+ * <li>ABORT: [upload id]</li>
+ * </ul>
+ * 
+ * The server replies to each stage with a {@link ServerMessageType#FILE_UPLOAD_STATUS}
+ * message of the form [stage][upload id][bytes received (long)].
+ * 
+ * @author Ilias Koukovinis
+ *
+ */
+public enum FileUploadAction {
+	BEGIN(0), CHUNK(1), COMMIT(2), RESUME(3), ABORT(4);
+	
+	private static final HashMap<Integer, FileUploadAction> values;
+	
+	static {
+		values = new HashMap<>(
+				Arrays.stream(FileUploadAction.values())
+				.collect(Collectors.toMap(type -> type.id, type -> type))
+				);
+	}
+	
+    public final int id;
+
+    FileUploadAction(int id) {
+        this.id = id;
+    }
+
+	public static FileUploadAction fromId(int id) {
+		return EnumIntConverter.fromId(values, id);
+	}
+}
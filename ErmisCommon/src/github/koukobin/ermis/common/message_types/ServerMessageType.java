@@ -30,7 +30,28 @@ public enum ServerMessageType {
 	MESSAGE_SUCCESFULLY_SENT(1), 
 	VOICE_CALL_INCOMING(2), 
 	SERVER_MESSAGE_INFO(3), 
-	COMMAND_RESULT(4);
+	COMMAND_RESULT(4),
+	FILE_UPLOAD_STATUS(5),
+	FILE_DOWNLOAD_CHUNK(6),
+	
+	/**
+	 * Sent to a client that fell behind and thus missed messages; of the form
+	 * [number of chat sessions][chat session id]...
+	 */
+	MESSAGES_MISSED(7),
+	
+	/**
+	 * Sent at most once per presence window to each client, with the members of
+	 * his chat sessions who went online or offline during it; of the form [number
+	 * of updates]([chat session id][client id][is online])...
+	 */
+	PRESENCE_UPDATES(8),
+	
+	/**
+	 * Sent to the active members of a chat session when a member changes his
+	 * username; of the form [chat session id][client id][username]
+	 */
+	MEMBER_RENAMED(9);
 
 	private static final HashMap<Integer, ServerMessageType> values;
 
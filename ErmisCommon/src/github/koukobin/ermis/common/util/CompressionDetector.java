@@ -32,6 +32,26 @@ public final class CompressionDetector {
 	 */
 	private static final int ZSTD_MAGIC_NUMBER = 0xFD2FB528; // Zstandard magic number
 
+	/**
+	 * Signatures of formats whose content is already compressed, and hence gains
+	 * nothing from being compressed again
+	 * 
+	 */
+	private static final byte[][] COMPRESSED_FORMAT_SIGNATURES = {
+			{ (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, // JPEG
+			{ (byte) 0x89, 'P', 'N', 'G' }, // PNG
+			{ 'G', 'I', 'F', '8' }, // GIF
+			{ 'P', 'K', 0x03, 0x04 }, // ZIP (Including DOCX, JAR, APK, etc.)
+			{ 0x1F, (byte) 0x8B }, // GZIP
+			{ '7', 'z', (byte) 0xBC, (byte) 0xAF }, // 7z
+			{ 'R', 'a', 'r', '!' }, // RAR
+			{ 'B', 'Z', 'h' }, // BZIP2
+			{ (byte) 0xFD, '7', 'z', 'X', 'Z' }, // XZ
+			{ 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD }, // Zstandard
+			{ 'O', 'g', 'g', 'S' }, // OGG
+			{ 'I', 'D', '3' }, // MP3
+	};
+
 	private CompressionDetector() {}
 	
     /**
@@ -67,6 +87,52 @@ public final class CompressionDetector {
 		return isZstdCompressed(magicNumber);
 	}
 
+	/**
+	 * Determines if the data starting at the given index is of a format that is
+	 * already compressed - such as JPEG, PNG or ZIP - judging by its signature.
+	 * This method does not modify the ByteBuf's read index or content.
+	 *
+	 * @param data  the ByteBuf to check
+	 * @param index the absolute index the data begins at
+	 * @return true if the data is already compressed, false otherwise
+	 */
+	public static boolean isAlreadyCompressed(ByteBuf data, int index) {
+		if (data == null || index < 0) {
+			return false;
+		}
+
+		int length = data.writerIndex() - index;
+
+		for (byte[] signature : COMPRESSED_FORMAT_SIGNATURES) {
+			if (startsWith(data, index, length, signature)) {
+				return true;
+			}
+		}
+
+		// RIFF containers (WebP, AVI, WAV); only WebP and AVI are compressed
+		if (startsWith(data, index, length, new byte[] { 'R', 'I', 'F', 'F' }) && length >= 12) {
+			return startsWith(data, index + 8, length - 8, new byte[] { 'W', 'E', 'B', 'P' })
+					|| startsWith(data, index + 8, length - 8, new byte[] { 'A', 'V', 'I', ' ' });
+		}
+
+		// ISO base media (MP4, MOV, HEIC, AVIF)
+		return startsWith(data, index + 4, length - 4, new byte[] { 'f', 't', 'y', 'p' });
+	}
+
+	private static boolean startsWith(ByteBuf data, int index, int length, byte[] signature) {
+		if (length < signature.length) {
+			return false;
+		}
+
+		for (int i = 0; i < signature.length; i++) {
+			if (data.getByte(index + i) != signature[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
 	/**
 	 * Compares the given magic number to the Zstandard magic number.
 	 *
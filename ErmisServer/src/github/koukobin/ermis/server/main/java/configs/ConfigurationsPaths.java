@@ -142,6 +142,23 @@ public final class ConfigurationsPaths {
 		private Database() {}
 	}
 	
+	public static class Storage {
+		
+		public static final String STORAGE_ROOT_FOLDER_PATH = ROOT_FOLDER + "storage/";
+		
+		/**
+		 * Where files being uploaded are stored until the upload is complete
+		 */
+		public static final String PENDING_UPLOADS_FOLDER_PATH = STORAGE_ROOT_FOLDER_PATH + "pending_uploads/";
+		
+		/**
+		 * Where the files of chat messages are stored, named after their SHA-256
+		 */
+		public static final String ATTACHMENTS_FOLDER_PATH = STORAGE_ROOT_FOLDER_PATH + "attachments/";
+		
+		private Storage() {}
+	}
+	
 	public static class LoggerSettingsPath {
 		
 		public static final String LOGGER_SETTINGS_PATH = CONFIGURATIONS_ROOT_FOLDER_PATH + "Logger Settings/";
@@ -29,6 +29,7 @@ import com.password4j.HashingFunction;
 import com.password4j.ScryptFunction;
 
 import github.koukobin.ermis.common.util.FileEditor;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.ChatMessagesWriter;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.complexity_checker.Requirements;
 
 /**
@@ -364,6 +365,12 @@ public final class DatabaseSettings {
 			public static final int MIN_IDLE = Integer.parseInt(POOLING_SETTINGS.getProperty("writeChatMessagesPoolMinIdle"));
 			public static final int MAX_POOL_SIZE = Integer.parseInt(POOLING_SETTINGS.getProperty("writeChatMessagesPoolMaxPoolSize"));
 
+			public static final int WRITER_THREADS = Integer.parseInt(POOLING_SETTINGS.getProperty("writeChatMessagesWriterThreads"));
+			public static final int QUEUE_CAPACITY = Integer.parseInt(POOLING_SETTINGS.getProperty("writeChatMessagesQueueCapacity"));
+			public static final int MAX_BATCH_SIZE = Integer.parseInt(POOLING_SETTINGS.getProperty("writeChatMessagesMaxBatchSize"));
+			public static final ChatMessagesWriter.AckMode ACK_MODE = ChatMessagesWriter.AckMode
+					.valueOf(POOLING_SETTINGS.getProperty("writeChatMessagesAckMode").toUpperCase());
+
 			private WriteChatMessagesPool() {}
 		}
 
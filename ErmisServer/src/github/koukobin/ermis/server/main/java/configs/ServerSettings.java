@@ -18,6 +18,9 @@ package github.koukobin.ermis.server.main.java.configs;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.logging.log4j.LogManager;
@@ -25,6 +28,7 @@ import org.apache.logging.log4j.Logger;
 
 import com.google.common.base.Throwables;
 
+import github.koukobin.ermis.common.message_types.ServerMessageType;
 import github.koukobin.ermis.common.util.FileEditor;
 
 /**
@@ -63,13 +67,218 @@ public final class ServerSettings {
 	
 	public static final int WORKER_THREADS = Integer.parseInt(GENERAL_PROPERTIES.getProperty("workerThreads"));
 	
+	/**
+	 * Threads executing blocking work, such as database queries, on behalf of
+	 * clients
+	 */
+	public static final int BLOCKING_WORK_THREADS = Integer.parseInt(GENERAL_PROPERTIES.getProperty("blockingWorkThreads"));
+	
+	/**
+	 * Max amount of requests of a single client pending execution
+	 */
+	public static final int BLOCKING_WORK_QUEUE_DEPTH = Integer.parseInt(GENERAL_PROPERTIES.getProperty("blockingWorkQueueDepth"));
+	
 	public static final int NUMBER_OF_MESSAGES_TO_READ_FROM_THE_DATABASE_AT_A_TIME = 80;
 	
 	public static final int MAX_CLIENT_MESSAGE_FILE_BYTES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("maxClientMessageFileBytes"));;
 	public static final int MAX_CLIENT_MESSAGE_TEXT_BYTES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("maxClientMessageTextBytes"));
 
+	public static final long MAX_FILE_UPLOAD_BYTES = Long.parseLong(GENERAL_PROPERTIES.getProperty("maxFileUploadBytes"));
+	public static final int MAX_FILE_UPLOAD_CHUNK_BYTES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("maxFileUploadChunkBytes"));
+	
+	/**
+	 * Duration before uploads that have not received any chunk are discarded
+	 */
+	public static final int FILE_UPLOAD_IDLE_TIMEOUT_SECONDS = Integer.parseInt(GENERAL_PROPERTIES.getProperty("fileUploadIdleTimeoutSeconds"));
+
+	/**
+	 * Max number of uploads a client can have pending at once
+	 */
+	public static final int MAX_PENDING_FILE_UPLOADS_PER_CLIENT = Integer.parseInt(GENERAL_PROPERTIES.getProperty("maxPendingFileUploadsPerClient"));
+
+	/**
+	 * Size of the chunks streamed files are sent in; bounds the memory a download
+	 * occupies at any time
+	 */
+	public static final int FILE_DOWNLOAD_CHUNK_BYTES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("fileDownloadChunkBytes"));
+
 	private ServerSettings() {}
 	
+	public static class Compression {
+		
+		public static final int DEFAULT_THRESHOLD_BYTES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("compressionThresholdBytes"));
+		public static final int DEFAULT_LEVEL = Integer.parseInt(GENERAL_PROPERTIES.getProperty("compressionLevel"));
+		
+		private static final Map<ServerMessageType, Integer> thresholdsBytes = new EnumMap<>(ServerMessageType.class);
+		private static final Map<ServerMessageType, Integer> levels = new EnumMap<>(ServerMessageType.class);
+		
+		/**
+		 * The lowest threshold of any message type; payloads smaller than this are
+		 * never compressed
+		 */
+		public static final int MIN_THRESHOLD_BYTES;
+		
+		static {
+			int minThresholdBytes = DEFAULT_THRESHOLD_BYTES;
+			
+			for (ServerMessageType messageType : ServerMessageType.values()) {
+				String thresholdBytes = GENERAL_PROPERTIES.getProperty("compressionThresholdBytes." + messageType.name());
+				String level = GENERAL_PROPERTIES.getProperty("compressionLevel." + messageType.name());
+				
+				thresholdsBytes.put(messageType, thresholdBytes == null ? DEFAULT_THRESHOLD_BYTES : Integer.parseInt(thresholdBytes));
+				levels.put(messageType, level == null ? DEFAULT_LEVEL : Integer.parseInt(level));
+				
+				minThresholdBytes = Math.min(minThresholdBytes, thresholdsBytes.get(messageType));
+			}
+			
+			MIN_THRESHOLD_BYTES = minThresholdBytes;
+		}
+		
+		private Compression() {}
+		
+		public static int getThresholdBytes(ServerMessageType messageType) {
+			return thresholdsBytes.get(messageType);
+		}
+		
+		public static int getLevel(ServerMessageType messageType) {
+			return levels.get(messageType);
+		}
+	}
+
+	public static class SlowConsumers {
+
+		/**
+		 * What is done with broadcasts to clients which do not keep up with what is
+		 * written to them
+		 */
+		public enum Policy {
+
+			/**
+			 * Broadcasts are dropped; once the client catches up, it is told which chat
+			 * sessions it missed messages of so that it can fetch them from history
+			 */
+			DROP,
+
+			/**
+			 * Broadcasts are held back and written once the client catches up; up to a
+			 * limit, beyond which they are dropped as with {@link #DROP}
+			 */
+			DEFER,
+
+			/**
+			 * The client is disconnected; it will load the messages it missed once it
+			 * reconnects
+			 */
+			DISCONNECT
+		}
+
+		/**
+		 * Once this many bytes are waiting to be written to a client, the client is
+		 * considered slow...
+		 */
+		public static final int WRITE_BUFFER_HIGH_WATER_MARK_BYTES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("writeBufferHighWaterMarkBytes"));
+
+		/**
+		 * ...until they drop below this many bytes
+		 */
+		public static final int WRITE_BUFFER_LOW_WATER_MARK_BYTES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("writeBufferLowWaterMarkBytes"));
+
+		public static final Policy POLICY = Policy.valueOf(GENERAL_PROPERTIES.getProperty("slowConsumerPolicy"));
+
+		/**
+		 * Max broadcasts held back per client when the policy is {@link Policy#DEFER}
+		 */
+		public static final int MAX_DEFERRED_MESSAGES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("slowConsumerMaxDeferredMessages"));
+
+		private SlowConsumers() {}
+	}
+
+	public static class FlushCoalescing {
+
+		public static final boolean IS_ENABLED = Boolean.parseBoolean(GENERAL_PROPERTIES.getProperty("flushCoalescingEnabled"));
+
+		/**
+		 * Max flushes held back before the channel is flushed regardless
+		 */
+		public static final int MAX_PENDING_FLUSHES = Integer.parseInt(GENERAL_PROPERTIES.getProperty("flushCoalescingMaxPendingFlushes"));
+
+		/**
+		 * Max duration a flush is held back for
+		 */
+		public static final int DELAY_MICROS = Integer.parseInt(GENERAL_PROPERTIES.getProperty("flushCoalescingDelayMicros"));
+
+		private FlushCoalescing() {}
+	}
+
+	public static class Presence {
+
+		/**
+		 * Window over which presence changes are gathered before being sent in a
+		 * single frame to each interested client
+		 */
+		public static final int DEBOUNCE_MILLIS = Integer.parseInt(GENERAL_PROPERTIES.getProperty("presenceDebounceMillis"));
+
+		private Presence() {}
+	}
+
+	public static class RecentMessages {
+
+		/**
+		 * Max bytes of recent messages kept in memory across all chat sessions
+		 */
+		public static final long CACHE_BYTES = Long.parseLong(GENERAL_PROPERTIES.getProperty("recentMessagesCacheBytes"));
+
+		private RecentMessages() {}
+	}
+
+	public static class EncodedHistoryPages {
+
+		/**
+		 * Max bytes of encoded pages of chat history kept in memory
+		 */
+		public static final long CACHE_BYTES = Long.parseLong(GENERAL_PROPERTIES.getProperty("encodedHistoryPagesCacheBytes"));
+
+		private EncodedHistoryPages() {}
+	}
+
+	public static class UserProfiles {
+
+		/**
+		 * Max bytes of profiles of clients kept in memory
+		 */
+		public static final long CACHE_BYTES = Long.parseLong(GENERAL_PROPERTIES.getProperty("userProfileCacheBytes"));
+
+		/**
+		 * Duration after which a profile kept in memory is read again from the
+		 * database
+		 */
+		public static final int CACHE_TTL_SECONDS = Integer.parseInt(GENERAL_PROPERTIES.getProperty("userProfileCacheTtlSeconds"));
+
+		private UserProfiles() {}
+	}
+
+	public static class Thumbnails {
+
+		/**
+		 * Max width and height of each variant generated for every image; sorted in
+		 * ascending order
+		 */
+		public static final int[] DIMENSIONS = Arrays.stream(GENERAL_PROPERTIES.getProperty("thumbnailDimensions").split(","))
+				.map(String::trim)
+				.mapToInt(Integer::parseInt)
+				.sorted()
+				.toArray();
+
+		public static final int GENERATOR_THREADS = Integer.parseInt(GENERAL_PROPERTIES.getProperty("thumbnailGeneratorThreads"));
+
+		/**
+		 * Max bytes of thumbnails kept in memory
+		 */
+		public static final long CACHE_BYTES = Long.parseLong(GENERAL_PROPERTIES.getProperty("thumbnailCacheBytes"));
+
+		private Thumbnails() {}
+	}
+	
 	public static class SSL {
 		
 		private static final Properties SSL_PROPERTIES;
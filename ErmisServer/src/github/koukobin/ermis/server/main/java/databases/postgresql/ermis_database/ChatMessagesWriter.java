@@ -0,0 +1,266 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Throwables;
+
+import github.koukobin.ermis.server.main.java.configs.DatabaseSettings;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.generators.MessageIDGenerator;
+
+/**
+ * Write-behind stage for chat messages.
+ *
+ * Messages are assigned their IDs up front and queued, so they can be broadcast
+ * straight away, while a dedicated pool of writer threads drains the queue and
+ * inserts the messages into the database in batches.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class ChatMessagesWriter {
+
+	private static final Logger logger = LogManager.getLogger("database");
+
+	private static final int WRITER_THREADS = DatabaseSettings.ConnectionPool.WriteChatMessagesPool.WRITER_THREADS;
+	private static final int QUEUE_CAPACITY = DatabaseSettings.ConnectionPool.WriteChatMessagesPool.QUEUE_CAPACITY;
+	private static final int MAX_BATCH_SIZE = DatabaseSettings.ConnectionPool.WriteChatMessagesPool.MAX_BATCH_SIZE;
+
+	public static final AckMode ACK_MODE = DatabaseSettings.ConnectionPool.WriteChatMessagesPool.ACK_MODE;
+
+	/**
+	 * Determines when a sender is acknowledged that his message has been sent.
+	 */
+	public enum AckMode {
+
+		/**
+		 * Acknowledge as soon as the message has been queued for persistence.
+		 * Messages still in the queue are lost in case the server crashes.
+		 */
+		ON_ENQUEUE,
+
+		/**
+		 * Acknowledge only once the message has been committed to the database.
+		 */
+		ON_COMMIT
+	}
+
+	/**
+	 * Bounds the amount of messages waiting to be persisted. A permit is acquired
+	 * when a message is queued and released once it has been written.
+	 */
+	private static final Semaphore capacity = new Semaphore(QUEUE_CAPACITY);
+	private static final BlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<>();
+
+	private static final ExecutorService writers;
+
+	/**
+	 * Held for reading while a message is queued and for writing while shutting
+	 * down, so that no message is queued once the writers have begun draining the
+	 * queue for the last time
+	 */
+	private static final ReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+	private static volatile boolean isRunning = true;
+
+	private record PendingMessage(DatabaseChatMessage message, CompletableFuture<Boolean> persisted) {}
+
+	static {
+		AtomicInteger threadCount = new AtomicInteger();
+		writers = Executors.newFixedThreadPool(WRITER_THREADS,
+				(Runnable r) -> new Thread(r, "Thread-ChatMessagesWriter-" + threadCount.incrementAndGet()));
+
+		for (int i = 0; i < WRITER_THREADS; i++) {
+			writers.execute(ChatMessagesWriter::drainQueue);
+		}
+	}
+
+	private ChatMessagesWriter() {}
+
+	/**
+	 * Assigns the message its ID and queues it for persistence. Does not block.
+	 *
+	 * @param message
+	 * @return a future completed with whether or not the message was succesfully
+	 *         persisted, or null if the queue is full and the message was
+	 *         rejected; in which case the message has not been assigned an ID.
+	 */
+	public static CompletableFuture<Boolean> enqueue(DatabaseChatMessage message) {
+
+		if (!reserve()) {
+			return null;
+		}
+
+		return enqueueReserved(message);
+	}
+
+	/**
+	 * Reserves room in the queue for a message, so that work which must precede
+	 * queueing it - such as storing its attachment - is only done once it is
+	 * certain to be accepted. The reservation is to be followed by either
+	 * {@link #enqueueReserved(DatabaseChatMessage)} or
+	 * {@link #cancelReservation()}.
+	 *
+	 * @return false if the queue is full or the writer is shutting down
+	 */
+	public static boolean reserve() {
+		return isRunning && capacity.tryAcquire();
+	}
+
+	public static void cancelReservation() {
+		capacity.release();
+	}
+
+	/**
+	 * Same as {@link #enqueue(DatabaseChatMessage)}, using room reserved through
+	 * {@link #reserve()}.
+	 *
+	 * @return the future, or null if the writer shut down since the reservation;
+	 *         in which case the reservation is cancelled
+	 */
+	public static CompletableFuture<Boolean> enqueueReserved(DatabaseChatMessage message) {
+
+		lifecycleLock.readLock().lock();
+		try {
+			if (!isRunning) {
+				capacity.release();
+				return null;
+			}
+
+			try {
+				message.setMessageID(MessageIDGenerator.incrementAndGetMessageID(message.getChatSessionID(),
+						ErmisDatabase.getWriteChatMessagesDataSource()));
+			} catch (RuntimeException re) {
+				capacity.release();
+				throw re;
+			}
+
+			CompletableFuture<Boolean> persisted = new CompletableFuture<>();
+			queue.add(new PendingMessage(message, persisted));
+
+			return persisted;
+		} finally {
+			lifecycleLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the amount of messages waiting to be persisted
+	 */
+	public static int getPendingCount() {
+		return QUEUE_CAPACITY - capacity.availablePermits();
+	}
+
+	/**
+	 * Stops accepting new messages and waits for the ones already queued to be
+	 * persisted.
+	 */
+	public static void shutdown() {
+
+		lifecycleLock.writeLock().lock();
+		try {
+			if (!isRunning) {
+				return;
+			}
+
+			isRunning = false;
+		} finally {
+			lifecycleLock.writeLock().unlock();
+		}
+
+		writers.shutdownNow(); // Interrupt writers blocked waiting for messages
+
+		try {
+			if (!writers.awaitTermination(30, TimeUnit.SECONDS)) {
+				logger.error("Timed out while persisting {} remaining chat messages", getPendingCount());
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		// A writer whose interrupt was swallowed while writing a batch goes back to
+		// waiting for messages without draining the queue
+		drainRemaining(new ArrayList<>(MAX_BATCH_SIZE));
+	}
+
+	private static void drainQueue() {
+
+		List<PendingMessage> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException ie) {
+				// Server is shutting down; persist whatever has been left in the queue
+				// before exiting
+				drainRemaining(batch);
+				return;
+			}
+
+			queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private static void drainRemaining(List<PendingMessage> batch) {
+		while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private static void write(List<PendingMessage> batch) {
+
+		List<DatabaseChatMessage> messages = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			messages.add(batch.get(i).message());
+		}
+
+		boolean[] results;
+		try (ErmisDatabase.WriteChatMessagesDBConnection conn = ErmisDatabase.getWriteChatMessagesConnection()) {
+			results = conn.addMessages(messages);
+		} catch (Exception e) {
+			logger.error(Throwables.getStackTraceAsString(e));
+			results = new boolean[batch.size()];
+		}
+
+		capacity.release(batch.size());
+
+		for (int i = 0; i < batch.size(); i++) {
+			if (!results[i]) {
+				logger.error("Failed to persist chat message: {}", batch.get(i).message().getMessageID());
+			}
+
+			batch.get(i).persisted().complete(results[i]);
+		}
+	}
+}
@@ -28,12 +28,19 @@ public class DatabaseChatMessage {
 
 	private int clientID;
 	private int chatSessionID;
+	private int messageID;
 
 	private byte[] text;
 	
 	private byte[] fileName;
 	private byte[] fileBytes;
 	
+	/**
+	 * SHA-256 of the file in the attachment store; files of new messages are kept
+	 * there instead of in fileBytes
+	 */
+	private String attachmentHash;
+	
 	private ContentType contentType;
 	
 	public DatabaseChatMessage() {}
@@ -55,6 +62,10 @@ public class DatabaseChatMessage {
 		this.chatSessionID = chatSessionID;
 	}
 	
+	public void setMessageID(int messageID) {
+		this.messageID = messageID;
+	}
+	
 	public void setText(byte[] text) {
 		this.text = text;
 	}
@@ -67,6 +78,10 @@ public class DatabaseChatMessage {
 		this.fileBytes = fileBytes;
 	}
 	
+	public void setAttachmentHash(String attachmentHash) {
+		this.attachmentHash = attachmentHash;
+	}
+	
 	public void setContentType(ContentType contentType) {
 		this.contentType = contentType;
 	}
@@ -79,6 +94,10 @@ public class DatabaseChatMessage {
 		return chatSessionID;
 	}
 
+	public int getMessageID() {
+		return messageID;
+	}
+
 	public byte[] getText() {
 		return text;
 	}
@@ -91,6 +110,10 @@ public class DatabaseChatMessage {
 		return fileBytes;
 	}
 	
+	public String getAttachmentHash() {
+		return attachmentHash;
+	}
+	
 	public ContentType getContentType() {
 		return contentType;
 	}
@@ -102,7 +125,7 @@ public class DatabaseChatMessage {
 		result = prime * result + Arrays.hashCode(fileBytes);
 		result = prime * result + Arrays.hashCode(fileName);
 		result = prime * result + Arrays.hashCode(text);
-		result = prime * result + Objects.hash(chatSessionID, clientID, contentType);
+		result = prime * result + Objects.hash(chatSessionID, clientID, messageID, attachmentHash, contentType);
 		return result;
 	}
 
@@ -124,7 +147,9 @@ public class DatabaseChatMessage {
 		DatabaseChatMessage other = (DatabaseChatMessage) obj;
 		return chatSessionID == other.chatSessionID 
 				&& clientID == other.clientID 
+				&& messageID == other.messageID
 				&& contentType == other.contentType
+				&& Objects.equals(attachmentHash, other.attachmentHash)
 				&& Arrays.equals(fileBytes, other.fileBytes) 
 				&& Arrays.equals(fileName, other.fileName)
 				&& Arrays.equals(text, other.text);
@@ -134,9 +159,11 @@ public class DatabaseChatMessage {
 	public String toString() {
 		return "DatabaseChatMessage [clientID=" + clientID 
 				+ ", chatSessionID=" + chatSessionID 
+				+ ", messageID=" + messageID 
 				+ ", text=" + Arrays.toString(text) 
 				+ ", fileName=" + Arrays.toString(fileName) 
 				+ ", fileBytes=" + Arrays.toString(fileBytes) 
+				+ ", attachmentHash=" + attachmentHash 
 				+ ", contentType=" 
 				+ contentType + "]";
 	}
@@ -15,6 +15,7 @@
  */
 package github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database;
  
+import java.io.IOException;
 import java.net.InetAddress;
 import java.sql.Array;
 import java.sql.Connection;
@@ -23,10 +24,17 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
@@ -52,6 +60,7 @@ import github.koukobin.ermis.common.util.FileEditor;
 import github.koukobin.ermis.server.main.java.configs.ConfigurationsPaths.Database;
 import github.koukobin.ermis.server.main.java.configs.DatabaseSettings;
 import github.koukobin.ermis.server.main.java.databases.postgresql.PostgresqlDatabase;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.StatementCatalogue.Query;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.complexity_checker.PasswordComplexityChecker;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.complexity_checker.UsernameComplexityChecker;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.generators.BackupVerificationCodesGenerator;
@@ -60,6 +69,9 @@ import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_databas
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.generators.MessageIDGenerator;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.hashing.HashUtil;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.hashing.SimpleHash;
+import github.koukobin.ermis.server.main.java.storage.AttachmentStore;
+import github.koukobin.ermis.server.main.java.storage.StoredFile;
+import github.koukobin.ermis.server.main.java.storage.Thumbnails;
 
 /**
  * @author Ilias Koukovinis
@@ -107,6 +119,7 @@ public final class ErmisDatabase {
 					.addDriverProperties(DatabaseSettings.Driver.getDriverProperties())
 					.setMinimumIdle(DatabaseSettings.ConnectionPool.WriteChatMessagesPool.MIN_IDLE)
 					.setMaximumPoolSize(DatabaseSettings.ConnectionPool.WriteChatMessagesPool.MAX_POOL_SIZE)
+					.addDataSourceProperty("reWriteBatchedInserts", "true" /* Let the driver collapse batches into multi-row INSERTs */)
 					.setConnectionTimeout(0)
 					.build();
 
@@ -148,6 +161,10 @@ public final class ErmisDatabase {
 		return new WriteChatMessagesDBConnection();
 	}
 
+	static HikariDataSource getWriteChatMessagesDataSource() {
+		return writeChatMessagesDataSource;
+	}
+
 	public enum Constant {
 	    NOT_FOUND, SUCCESSFUL_INSERT, DUPLICATE_ENTRY, NOTHING_CHANGED;
 	}
@@ -193,8 +210,8 @@ public final class ErmisDatabase {
 
 			String sql = """
 					    INSERT INTO chat_messages
-					    (chat_session_id, message_id, client_id, text, file_name, file_bytes, content_type)
-					    VALUES (?, ?, ?, ?, ?, ?, ?)
+					    (chat_session_id, message_id, client_id, text, file_name, file_bytes, attachment_hash, content_type)
+					    VALUES (?, ?, ?, ?, ?, ?, ?, ?)
 					    RETURNING message_id;
 					""";
 
@@ -208,7 +225,8 @@ public final class ErmisDatabase {
 				addMessage.setBytes(4, message.getText()); // keep in mind this converts the bytes to hexadecimal form
 				addMessage.setBytes(5, message.getFileName()); // keep in mind this converts the bytes to hexadecimal form
 				addMessage.setBytes(6, message.getFileBytes());
-				addMessage.setInt(7, ContentTypeConverter.getContentTypeAsDatabaseInt(message.getContentType()));
+				addMessage.setString(7, message.getAttachmentHash());
+				addMessage.setInt(8, ContentTypeConverter.getContentTypeAsDatabaseInt(message.getContentType()));
 
 				try (ResultSet rs = addMessage.executeQuery()) {
 					rs.next();
@@ -220,6 +238,89 @@ public final class ErmisDatabase {
 
 			return messageID;
 		}
+
+		/**
+		 * Inserts the given messages in a single transaction. Unlike
+		 * {@link #addMessage(DatabaseChatMessage)}, the messages' IDs must already have
+		 * been assigned by {@link MessageIDGenerator}.
+		 *
+		 * @param messages
+		 * @return whether or not each message was succesfully inserted
+		 */
+		public boolean[] addMessages(List<DatabaseChatMessage> messages) {
+
+			boolean[] results = new boolean[messages.size()];
+
+			String sql = """
+					    INSERT INTO chat_messages
+					    (chat_session_id, message_id, client_id, text, file_name, file_bytes, attachment_hash, content_type)
+					    VALUES (?, ?, ?, ?, ?, ?, ?, ?);
+					""";
+
+			try (PreparedStatement addMessages = conn.prepareStatement(sql)) {
+				conn.setAutoCommit(false);
+
+				for (int i = 0; i < messages.size(); i++) {
+					setMessageParameters(addMessages, messages.get(i));
+					addMessages.addBatch();
+				}
+
+				addMessages.executeBatch();
+				conn.commit();
+
+				Arrays.fill(results, true);
+				return results;
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+				rollback();
+			} finally {
+				restoreAutoCommit();
+			}
+
+			// Batch failed as a whole; insert messages one by one so that a single
+			// faulty message does not cost the rest of the batch
+			try (PreparedStatement addMessage = conn.prepareStatement(sql)) {
+				for (int i = 0; i < messages.size(); i++) {
+					try {
+						setMessageParameters(addMessage, messages.get(i));
+						results[i] = addMessage.executeUpdate() == 1;
+					} catch (SQLException sqle) {
+						logger.error(Throwables.getStackTraceAsString(sqle));
+					}
+				}
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+			}
+
+			return results;
+		}
+
+		private static void setMessageParameters(PreparedStatement pstmt, DatabaseChatMessage message) throws SQLException {
+			pstmt.setInt(1, message.getChatSessionID());
+			pstmt.setInt(2, message.getMessageID());
+			pstmt.setInt(3, message.getClientID());
+			pstmt.setBytes(4, message.getText()); // keep in mind this converts the bytes to hexadecimal form
+			pstmt.setBytes(5, message.getFileName()); // keep in mind this converts the bytes to hexadecimal form
+			pstmt.setBytes(6, message.getFileBytes());
+			pstmt.setString(7, message.getAttachmentHash());
+			pstmt.setInt(8, ContentTypeConverter.getContentTypeAsDatabaseInt(message.getContentType()));
+		}
+
+		private void rollback() {
+			try {
+				conn.rollback();
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+			}
+		}
+
+		private void restoreAutoCommit() {
+			try {
+				conn.setAutoCommit(true);
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+			}
+		}
 	}
 
 	public static class GeneralPurposeDBConnection extends DBConnection {
@@ -362,6 +463,21 @@ public final class ErmisDatabase {
 				return resultUpdate;
 			}
 
+			// The user's messages are deleted along with him
+			Set<String> attachmentHashes = new LinkedHashSet<>();
+			try (PreparedStatement selectAttachmentHashes = conn.prepareStatement(
+					"SELECT DISTINCT attachment_hash FROM chat_messages WHERE client_id=? AND attachment_hash IS NOT NULL;")) {
+				selectAttachmentHashes.setInt(1, clientID);
+
+				try (ResultSet rs = selectAttachmentHashes.executeQuery()) {
+					while (rs.next()) {
+						attachmentHashes.add(rs.getString(1));
+					}
+				}
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+			}
+
 			try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM users WHERE client_id=?;")) {
 				pstmt.setInt(1, clientID);
 
@@ -370,6 +486,12 @@ public final class ErmisDatabase {
 				logger.error(Throwables.getStackTraceAsString(sqle));
 			}
 
+			UserProfileCache.invalidate(clientID);
+
+			if (resultUpdate > 0) {
+				deleteUnreferencedAttachments(attachmentHashes);
+			}
+
 			return resultUpdate;
 		}
 
@@ -512,6 +634,7 @@ public final class ErmisDatabase {
 
 				int resultUpdate = changeUsername.executeUpdate();
 				if (resultUpdate == 1) {
+					UserProfileCache.invalidate(clientID);
 					return ChangeUsernameResult.SUCCESFULLY_CHANGED_USERNAME.resultHolder;
 				}
 			} catch (SQLException sqle) {
@@ -592,14 +715,14 @@ public final class ErmisDatabase {
 
 			String username = null;
 
-			try (PreparedStatement pstmt = conn
-					.prepareStatement("SELECT display_name FROM user_profiles WHERE client_id=?;")) {
-
+			try {
+				PreparedStatement pstmt = Query.GET_USERNAME.prepare(conn);
 				pstmt.setInt(1, clientID);
-				ResultSet rs = pstmt.executeQuery();
 
-				if (rs.next()) {
-					username = rs.getString(1);
+				try (ResultSet rs = Query.GET_USERNAME.executeQuery(pstmt)) {
+					if (rs.next()) {
+						username = rs.getString(1);
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -608,6 +731,42 @@ public final class ErmisDatabase {
 			return username;
 		}
 
+		/**
+		 * Selects the profiles of all the given clients in a single query; clients
+		 * without a profile are omitted.
+		 */
+		public Map<Integer, UserProfile> getUserProfiles(int... clientIDS) {
+
+			Map<Integer, UserProfile> clientIDSToProfiles = new HashMap<>(clientIDS.length);
+
+			if (clientIDS.length == 0) {
+				return clientIDSToProfiles;
+			}
+
+			try {
+				PreparedStatement pstmt = Query.GET_USER_PROFILES.prepare(conn);
+
+				Array clientIDSArray = conn.createArrayOf("INTEGER", ArrayUtils.toObject(clientIDS));
+				pstmt.setArray(1, clientIDSArray);
+
+				try (ResultSet rs = Query.GET_USER_PROFILES.executeQuery(pstmt)) {
+					while (rs.next()) {
+
+						int clientID = rs.getInt(1);
+						String displayName = rs.getString(2);
+						String email = rs.getString(3);
+						String iconHash = rs.getString(4);
+
+						clientIDSToProfiles.put(clientID, new UserProfile(clientID, displayName, email, iconHash));
+					}
+				}
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+			}
+
+			return clientIDSToProfiles;
+		}
+
 		public String getPasswordHash(String email) {
 
 			String passwordHash = null;
@@ -787,14 +946,14 @@ public final class ErmisDatabase {
 
 			int clientID = -1;
 
-			String sql = "SELECT client_id FROM user_ips WHERE ip_address=?;";
-			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
+			try {
+				PreparedStatement pstmt = Query.GET_CLIENT_ID_BY_ADDRESS.prepare(conn);
 				pstmt.setString(1, address.getHostName());
 				
-				ResultSet rs = pstmt.executeQuery();
-				if (rs.next()) {
-					clientID = rs.getInt(1);
+				try (ResultSet rs = Query.GET_CLIENT_ID_BY_ADDRESS.executeQuery(pstmt)) {
+					if (rs.next()) {
+						clientID = rs.getInt(1);
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -807,13 +966,14 @@ public final class ErmisDatabase {
 
 			int clientID = -1;
 
-			try (PreparedStatement pstmt = conn.prepareStatement("SELECT client_id FROM users WHERE email=?;")) {
-
+			try {
+				PreparedStatement pstmt = Query.GET_CLIENT_ID_BY_EMAIL.prepare(conn);
 				pstmt.setString(1, email);
-				ResultSet rs = pstmt.executeQuery();
 
-				if (rs.next()) {
-					clientID = rs.getInt(1);
+				try (ResultSet rs = Query.GET_CLIENT_ID_BY_EMAIL.executeQuery(pstmt)) {
+					if (rs.next()) {
+						clientID = rs.getInt(1);
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -1022,25 +1182,24 @@ public final class ErmisDatabase {
 
 			Integer[] friendRequests = ArrayUtils.EMPTY_INTEGER_OBJECT_ARRAY;
 
-			try (PreparedStatement pstmt = conn
-					.prepareStatement("SELECT sender_client_id FROM chat_requests WHERE receiver_client_id=?;",
-							ResultSet.TYPE_SCROLL_SENSITIVE, 
-							ResultSet.CONCUR_UPDATABLE)) {
-
+			try {
+				PreparedStatement pstmt = Query.GET_CHAT_REQUESTS.prepare(conn);
 				pstmt.setInt(1, clientID);
-				ResultSet rs = pstmt.executeQuery();
 
-				// Move to the last row to get the row count
-				rs.last();
-				int rowCount = rs.getRow(); // Get total rows
-				rs.beforeFirst();
+				try (ResultSet rs = Query.GET_CHAT_REQUESTS.executeQuery(pstmt)) {
 
-				friendRequests = new Integer[rowCount];
-				
-				int i = 0;
-				while (rs.next()) {
-					friendRequests[i] = rs.getInt("sender_client_id");
-					i++;
+					// Move to the last row to get the row count
+					rs.last();
+					int rowCount = rs.getRow(); // Get total rows
+					rs.beforeFirst();
+
+					friendRequests = new Integer[rowCount];
+					
+					int i = 0;
+					while (rs.next()) {
+						friendRequests[i] = rs.getInt("sender_client_id");
+						i++;
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -1053,6 +1212,8 @@ public final class ErmisDatabase {
 
 			int resultUpdate = 0;
 
+			Set<String> attachmentHashes = new LinkedHashSet<>();
+
 			try {
 
 				try (PreparedStatement deleteUserFromChatSession = conn.prepareStatement(
@@ -1068,9 +1229,16 @@ public final class ErmisDatabase {
 					}
 
 					try (PreparedStatement deleteMessagesOfChatSession = conn
-							.prepareStatement("DELETE FROM chat_messages WHERE chat_session_id=?")) {
+							.prepareStatement("DELETE FROM chat_messages WHERE chat_session_id=? RETURNING attachment_hash")) {
 						deleteMessagesOfChatSession.setInt(1, chatSessionID);
-						deleteMessagesOfChatSession.executeUpdate();
+
+						try (ResultSet rs = deleteMessagesOfChatSession.executeQuery()) {
+							while (rs.next()) {
+								if (rs.getString(1) != null) {
+									attachmentHashes.add(rs.getString(1));
+								}
+							}
+						}
 					}
 
 					try (PreparedStatement deleteChatSession = conn
@@ -1085,6 +1253,8 @@ public final class ErmisDatabase {
 				logger.error(Throwables.getStackTraceAsString(sqle));
 			}
 
+			deleteUnreferencedAttachments(attachmentHashes);
+
 			return resultUpdate;
 		}
 
@@ -1095,12 +1265,20 @@ public final class ErmisDatabase {
 			try {
 
 				try (PreparedStatement deleteMessage = conn
-						.prepareStatement("DELETE FROM chat_messages WHERE chat_session_id=? AND message_id=?")) {
+						.prepareStatement("DELETE FROM chat_messages WHERE chat_session_id=? AND message_id=? RETURNING attachment_hash")) {
 
 					deleteMessage.setInt(1, chatSessionID);
 					deleteMessage.setInt(2, messageID);
 
-					resultUpdate = deleteMessage.executeUpdate();
+					try (ResultSet rs = deleteMessage.executeQuery()) {
+						if (rs.next()) {
+							resultUpdate = 1;
+
+							if (rs.getString(1) != null) {
+								deleteUnreferencedAttachments(List.of(rs.getString(1)));
+							}
+						}
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -1109,6 +1287,43 @@ public final class ErmisDatabase {
 			return resultUpdate;
 		}
 
+		/**
+		 * Deletes the given files from the {@link AttachmentStore} - along with their
+		 * thumbnails - unless another chat message still references them. To be
+		 * called after the chat messages referencing them have been deleted.
+		 */
+		public void deleteUnreferencedAttachments(Collection<String> attachmentHashes) {
+			for (String attachmentHash : attachmentHashes) {
+				try {
+					if (AttachmentStore.deleteIfUnreferenced(attachmentHash, this::isAttachmentReferenced)) {
+						Thumbnails.invalidate(attachmentHash);
+					}
+				} catch (IOException ioe) {
+					logger.error(Throwables.getStackTraceAsString(ioe));
+				}
+			}
+		}
+
+		/**
+		 * @return whether any chat message references the file; or true if that
+		 *         could not be determined, so that it is not deleted
+		 */
+		private boolean isAttachmentReferenced(String attachmentHash) {
+
+			try (PreparedStatement isReferenced = conn.prepareStatement(
+					"SELECT 1 FROM chat_messages WHERE attachment_hash=? LIMIT 1;")) {
+
+				isReferenced.setString(1, attachmentHash);
+
+				try (ResultSet rs = isReferenced.executeQuery()) {
+					return rs.next();
+				}
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+				return true;
+			}
+		}
+
 		/**
 		 * 
 		 * @returns the ids of the chat sessions that the user belongs to.
@@ -1117,33 +1332,30 @@ public final class ErmisDatabase {
 
 			Integer[] chatSessions = ArrayUtils.EMPTY_INTEGER_OBJECT_ARRAY;
 
-			try (PreparedStatement getChatSessionIDS = conn.prepareStatement(
-					"SELECT chat_session_id FROM chat_session_members WHERE member_id=?;",
-					ResultSet.TYPE_SCROLL_SENSITIVE,
-					ResultSet.CONCUR_UPDATABLE /*
-												 * Pass these parameters so ResultSets can move forwards and backwards
-												 */)) {
-
+			try {
+				PreparedStatement getChatSessionIDS = Query.GET_CHAT_SESSIONS_USER_BELONGS_TO.prepare(conn);
 				getChatSessionIDS.setInt(1, clientID);
-				ResultSet rs = getChatSessionIDS.executeQuery();
 
-				if (!rs.next()) {
-					return chatSessions;
-				}
-				
-				// Move to the last row to get the row count
-				rs.last();
-				int rowCount = rs.getRow(); // Get total rows
-				rs.beforeFirst();
+				try (ResultSet rs = Query.GET_CHAT_SESSIONS_USER_BELONGS_TO.executeQuery(getChatSessionIDS)) {
 
-				chatSessions = new Integer[rowCount];
-
-				int i = 0;
-				while (rs.next()) {
-					Integer chatSessionID = rs.getInt(1);
-					System.out.println(chatSessionID);
-					chatSessions[i] = chatSessionID;
-					i++;
+					if (!rs.next()) {
+						return chatSessions;
+					}
+					
+					// Move to the last row to get the row count
+					rs.last();
+					int rowCount = rs.getRow(); // Get total rows
+					rs.beforeFirst();
+
+					chatSessions = new Integer[rowCount];
+
+					int i = 0;
+					while (rs.next()) {
+						Integer chatSessionID = rs.getInt(1);
+						System.out.println(chatSessionID);
+						chatSessions[i] = chatSessionID;
+						i++;
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -1160,28 +1372,25 @@ public final class ErmisDatabase {
 
 			Integer[] members = ArrayUtils.EMPTY_INTEGER_OBJECT_ARRAY;
 
-			try (PreparedStatement getMembersOfChatSessions = conn.prepareStatement(
-					"SELECT member_id FROM chat_session_members WHERE chat_session_id=?;", 
-					ResultSet.TYPE_SCROLL_SENSITIVE,
-					ResultSet.CONCUR_UPDATABLE /*
-												 * Pass these parameters so ResultSets can move forwards and backwards
-												 */)) {
-
+			try {
+				PreparedStatement getMembersOfChatSessions = Query.GET_MEMBERS_OF_CHAT_SESSION.prepare(conn);
 				getMembersOfChatSessions.setInt(1, chatSessionID);
-				ResultSet rs = getMembersOfChatSessions.executeQuery();
 
-				// Move to the last row to get the row count
-				rs.last();
-				int rowCount = rs.getRow(); // Get total rows
-				rs.beforeFirst();
+				try (ResultSet rs = Query.GET_MEMBERS_OF_CHAT_SESSION.executeQuery(getMembersOfChatSessions)) {
 
-				members = new Integer[rowCount];
+					// Move to the last row to get the row count
+					rs.last();
+					int rowCount = rs.getRow(); // Get total rows
+					rs.beforeFirst();
 
-				int i = 0;
-				while (rs.next()) {
-					Integer memberID = rs.getInt(1);
-					members[i] = memberID;
-					i++;
+					members = new Integer[rowCount];
+
+					int i = 0;
+					while (rs.next()) {
+						Integer memberID = rs.getInt(1);
+						members[i] = memberID;
+						i++;
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -1228,12 +1437,13 @@ public final class ErmisDatabase {
 
 			boolean isLoggedIn = false;
 
-			try (PreparedStatement getIsLoggedIn = conn
-					.prepareStatement("SELECT 1 from user_ips WHERE ip_address=?;")) {
-
+			try {
+				PreparedStatement getIsLoggedIn = Query.IS_LOGGED_IN.prepare(conn);
 				getIsLoggedIn.setString(1, address.getHostName());
-				ResultSet rs = getIsLoggedIn.executeQuery();
-				isLoggedIn = rs.next();
+
+				try (ResultSet rs = Query.IS_LOGGED_IN.executeQuery(getIsLoggedIn)) {
+					isLoggedIn = rs.next();
+				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
 			}
@@ -1245,14 +1455,14 @@ public final class ErmisDatabase {
 
 			String emailAddress = null;
 
-			try (PreparedStatement getEmailAddress = conn
-					.prepareStatement("SELECT email FROM users WHERE client_id=?;")) {
-
+			try {
+				PreparedStatement getEmailAddress = Query.GET_EMAIL_ADDRESS.prepare(conn);
 				getEmailAddress.setInt(1, clientID);
-				ResultSet rs = getEmailAddress.executeQuery();
 
-				if (rs.next()) {
-					emailAddress = rs.getString(1);
+				try (ResultSet rs = Query.GET_EMAIL_ADDRESS.executeQuery(getEmailAddress)) {
+					if (rs.next()) {
+						emailAddress = rs.getString(1);
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -1282,17 +1492,23 @@ public final class ErmisDatabase {
 			
 			int resultUpdate = 0;
 
+			// Clients tell by it whether they already have the icon
+			String iconHash = icon.length == 0 ? null : HexFormat.of().formatHex(AttachmentStore.newDigest().digest(icon));
+
 			try (PreparedStatement pstmt = conn.prepareStatement(
-					"UPDATE user_profiles SET profile_photo = ? WHERE client_id = ?;")) {
+					"UPDATE user_profiles SET profile_photo = ?, profile_photo_hash = ? WHERE client_id = ?;")) {
 
 				pstmt.setBytes(1, icon);
-				pstmt.setInt(2, clientID);
+				pstmt.setString(2, iconHash);
+				pstmt.setInt(3, clientID);
 
 				resultUpdate = pstmt.executeUpdate();
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
 			}
 
+			UserProfileCache.invalidate(clientID);
+
 			return resultUpdate;
 		}
 		
@@ -1300,15 +1516,14 @@ public final class ErmisDatabase {
 			
 			byte[] icon = null;
 
-			try (PreparedStatement pstmt = conn.prepareStatement(
-					"SELECT profile_photo FROM user_profiles WHERE client_id = ?;")) {
-
+			try {
+				PreparedStatement pstmt = Query.SELECT_USER_ICON.prepare(conn);
 				pstmt.setInt(1, clientID);
 
-				ResultSet rs = pstmt.executeQuery();
-				
-				if (rs.next()) {
-					icon = rs.getBytes(1);
+				try (ResultSet rs = Query.SELECT_USER_ICON.executeQuery(pstmt)) {
+					if (rs.next()) {
+						icon = rs.getBytes(1);
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
@@ -1321,12 +1536,42 @@ public final class ErmisDatabase {
 			return icon;
 		}
 
+		/**
+		 * Selects the icons of all the given clients in a single query; clients
+		 * without an icon are omitted.
+		 */
+		public List<UserIcon> selectUserIcons(int... clientIDS) {
+
+			List<UserIcon> icons = new ArrayList<>(clientIDS.length);
+
+			if (clientIDS.length == 0) {
+				return icons;
+			}
+
+			try {
+				PreparedStatement pstmt = Query.SELECT_USER_ICONS.prepare(conn);
+
+				Array clientIDSArray = conn.createArrayOf("INTEGER", ArrayUtils.toObject(clientIDS));
+				pstmt.setArray(1, clientIDSArray);
+
+				try (ResultSet rs = Query.SELECT_USER_ICONS.executeQuery(pstmt)) {
+					while (rs.next()) {
+						icons.add(new UserIcon(rs.getInt(1), rs.getString(2), rs.getBytes(3)));
+					}
+				}
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+			}
+
+			return icons;
+		}
+
 		public LoadedInMemoryFile getFile(int messageID, int chatSessionID) {
 
 			LoadedInMemoryFile file = null;
 
 			try (PreparedStatement getFileBytes = conn.prepareStatement(
-					"SELECT file_bytes, file_name FROM chat_messages WHERE message_id=? AND chat_session_id=?;")) {
+					"SELECT attachment_hash, file_bytes, file_name FROM chat_messages WHERE message_id=? AND chat_session_id=?;")) {
 
 				getFileBytes.setInt(1, messageID);
 				getFileBytes.setInt(2, chatSessionID);
@@ -1334,10 +1579,42 @@ public final class ErmisDatabase {
 				ResultSet rs = getFileBytes.executeQuery();
 
 				if (rs.next()) {
-					byte[] fileBytes = rs.getBytes(1);
-					byte[] fileName = rs.getBytes(2);
+					String attachmentHash = rs.getString(1);
+					byte[] fileBytes = attachmentHash == null
+							? rs.getBytes(2) // Message predates the attachment store and has not been migrated yet
+							: AttachmentStore.read(attachmentHash);
+					byte[] fileName = rs.getBytes(3);
 					file = new LoadedInMemoryFile(new String(fileName), fileBytes);
 				}
+			} catch (SQLException | IOException e) {
+				logger.error(Throwables.getStackTraceAsString(e));
+			}
+
+			return file;
+		}
+
+		/**
+		 * Same as {@link #getFile(int, int)} but does not read the file from the
+		 * {@link AttachmentStore}, so that it can be streamed from there instead.
+		 *
+		 * @return the file or null if there is no such message
+		 */
+		public StoredFile getStoredFile(int messageID, int chatSessionID) {
+
+			StoredFile file = null;
+
+			try (PreparedStatement getStoredFile = conn.prepareStatement(
+					"SELECT file_name, attachment_hash, file_bytes, content_type FROM chat_messages WHERE message_id=? AND chat_session_id=?;")) {
+
+				getStoredFile.setInt(1, messageID);
+				getStoredFile.setInt(2, chatSessionID);
+
+				try (ResultSet rs = getStoredFile.executeQuery()) {
+					if (rs.next()) {
+						String attachmentHash = rs.getString(2);
+						file = new StoredFile(rs.getBytes(1), ContentType.fromId(rs.getInt(4)), attachmentHash, attachmentHash == null ? rs.getBytes(3) : null);
+					}
+				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
 			}
@@ -1345,70 +1622,150 @@ public final class ErmisDatabase {
 			return file;
 		}
 
-		public Message[] selectMessages(int chatSessionID, int numOfMessagesAlreadySelected, int numOfMessagesToSelect) {
+		/**
+		 * Records that the file of a chat message, still stored in the database, has
+		 * been copied to the {@link AttachmentStore} - so that it is read from there
+		 * from now on - and releases it.
+		 */
+		public void setAttachmentHash(int messageID, int chatSessionID, String attachmentHash) {
 
-			Message[] messages = new Message[0];
-
-			try (PreparedStatement selectMessages = conn.prepareStatement(
-					"SELECT message_id, client_id, text, file_name, ts_entered, content_type "
-							+ "FROM chat_messages "
-							+ "WHERE chat_session_id=? "
-							+ "AND message_id <= ? "
-							+ "ORDER BY message_id DESC LIMIT ?;",
-					ResultSet.TYPE_SCROLL_SENSITIVE,
-					ResultSet.CONCUR_UPDATABLE /*
-												 * Pass these parameters so ResultSets can move forwards and backwards
-												 */)) {
-
-				int messageIDOfLatestMessage = MessageIDGenerator.getMessageIDCount(chatSessionID, conn);
-				int messageIDToReadFrom = messageIDOfLatestMessage - numOfMessagesAlreadySelected;
-				
-				selectMessages.setInt(1, chatSessionID);
-				selectMessages.setInt(2, messageIDToReadFrom);
-				selectMessages.setInt(3, numOfMessagesToSelect);
-				ResultSet rs = selectMessages.executeQuery();
+			int updated = 0;
 
-				if (!rs.next()) {
-					return messages;
-				}
+			try (PreparedStatement setAttachmentHash = conn.prepareStatement(
+					"UPDATE chat_messages SET attachment_hash=?, file_bytes=NULL WHERE message_id=? AND chat_session_id=? AND attachment_hash IS NULL;")) {
 
-				// <GET MESSAGES SELECTED NUMBER>
-				rs.last();
-				int rowCount = rs.getRow();
-				rs.first();
-				// </GET MESSAGES SELECTED NUMBER>
+				setAttachmentHash.setString(1, attachmentHash);
+				setAttachmentHash.setInt(2, messageID);
+				setAttachmentHash.setInt(3, chatSessionID);
+
+				updated = setAttachmentHash.executeUpdate();
+			} catch (SQLException sqle) {
+				logger.error(Throwables.getStackTraceAsString(sqle));
+			} finally {
+				AttachmentStore.release(attachmentHash);
+			}
+
+			// Message deleted or moved concurrently
+			if (updated == 0) {
+				deleteUnreferencedAttachments(List.of(attachmentHash));
+			}
+		}
+
+		/**
+		 * Moves the files of up to batchSize chat messages, which still have their
+		 * files stored in the database, to the {@link AttachmentStore}.
+		 *
+		 * @param batchSize
+		 * @return the amount of messages migrated; 0 once there are no more messages
+		 *         left to migrate
+		 */
+		public int moveFilesToAttachmentStore(int batchSize) throws SQLException, IOException {
 
-				messages = new Message[rowCount];
+			int messagesMigrated = 0;
 
-				Map<Integer, String> clientIDSToUsernames = new HashMap<>();
+			try (PreparedStatement selectFiles = conn.prepareStatement(
+					"SELECT chat_session_id, message_id, file_bytes FROM chat_messages WHERE file_bytes IS NOT NULL LIMIT ?;");
+					PreparedStatement setAttachmentHash = conn.prepareStatement(
+							"UPDATE chat_messages SET attachment_hash=?, file_bytes=NULL WHERE chat_session_id=? AND message_id=?;")) {
 
-				// reverse messages order from newest to oldest to oldest to newest
-				for (int i = rowCount - 1; i >= 0; i--, rs.next()) {
+				selectFiles.setInt(1, batchSize);
 
-					int messageID = rs.getInt(1);
-					int clientID = rs.getInt(2);
+				List<String> attachmentHashes = new ArrayList<>(batchSize);
+				try {
+					try (ResultSet rs = selectFiles.executeQuery()) {
+						while (rs.next()) {
+							String attachmentHash = AttachmentStore.store(rs.getBytes(3));
+							attachmentHashes.add(attachmentHash);
 
-					String username = clientIDSToUsernames.get(clientID);
+							setAttachmentHash.setString(1, attachmentHash);
+							setAttachmentHash.setInt(2, rs.getInt(1));
+							setAttachmentHash.setInt(3, rs.getInt(2));
+							setAttachmentHash.addBatch();
 
-					if (username == null) {
-						username = getUsername(clientID);
-						clientIDSToUsernames.put(clientID, username);
+							messagesMigrated++;
+						}
 					}
 
-					byte[] textBytes = rs.getBytes(3);
-					byte[] fileNameBytes = rs.getBytes(4);
+					// Files are written to the store before their rows are updated, so that an
+					// interruption at any point never leaves a message without its file
+					int[] updated = setAttachmentHash.executeBatch();
 
-					Timestamp timeWritten = rs.getTimestamp(5);
-					
-					ContentType contentType = ContentTypeConverter.getDatabaseIntAsContentType(rs.getInt(6));
-					
-					messages[i] = new Message(username, clientID, messageID, chatSessionID, textBytes, fileNameBytes, timeWritten.getTime(), contentType);
+					// Messages deleted meanwhile
+					List<String> unreferenced = new ArrayList<>();
+					for (int i = 0; i < updated.length; i++) {
+						if (updated[i] == 0) {
+							unreferenced.add(attachmentHashes.get(i));
+						}
+					}
+
+					attachmentHashes.forEach(AttachmentStore::release);
+					attachmentHashes.clear();
+
+					deleteUnreferencedAttachments(unreferenced);
+				} finally {
+					attachmentHashes.forEach(AttachmentStore::release);
+				}
+			}
+
+			return messagesMigrated;
+		}
+
+		/**
+		 * Selects messages counting back from the latest message id issued in the
+		 * chat session. Since deleted messages are counted as well, pages drift once
+		 * messages are deleted; prefer {@link #selectMessagesBefore(int, int, int)}.
+		 */
+		public Message[] selectMessages(int chatSessionID, int numOfMessagesAlreadySelected, int numOfMessagesToSelect) {
+
+			int messageIDOfLatestMessage = MessageIDGenerator.getMessageIDCount(chatSessionID, conn);
+			int messageIDToReadFrom = messageIDOfLatestMessage - numOfMessagesAlreadySelected;
+
+			return selectMessagesBefore(chatSessionID, messageIDToReadFrom + 1, numOfMessagesToSelect);
+		}
+
+		/**
+		 * Selects the latest messages of the chat session whose id is less than the
+		 * one given; which, being served by the primary key's index, takes as long
+		 * regardless of how far back in the chat session's history the messages are.
+		 * 
+		 * @return the messages in ascending order
+		 */
+		public Message[] selectMessagesBefore(int chatSessionID, int beforeMessageID, int numOfMessagesToSelect) {
+
+			List<Message> messages = new ArrayList<>(numOfMessagesToSelect);
+
+			try {
+				PreparedStatement selectMessages = Query.SELECT_MESSAGES_BEFORE.prepare(conn);
+				selectMessages.setFetchSize(numOfMessagesToSelect);
+				selectMessages.setInt(1, chatSessionID);
+				selectMessages.setInt(2, beforeMessageID);
+				selectMessages.setInt(3, numOfMessagesToSelect);
+
+				try (ResultSet rs = Query.SELECT_MESSAGES_BEFORE.executeQuery(selectMessages)) {
+					while (rs.next()) {
+
+						int messageID = rs.getInt(1);
+						int clientID = rs.getInt(2);
+						String username = rs.getString(3);
+
+						byte[] textBytes = rs.getBytes(4);
+						byte[] fileNameBytes = rs.getBytes(5);
+
+						Timestamp timeWritten = rs.getTimestamp(6);
+
+						ContentType contentType = ContentTypeConverter.getDatabaseIntAsContentType(rs.getInt(7));
+
+						messages.add(new Message(username, clientID, messageID, chatSessionID, textBytes, fileNameBytes, timeWritten.getTime(), contentType));
+					}
 				}
 			} catch (SQLException sqle) {
 				logger.error(Throwables.getStackTraceAsString(sqle));
 			}
 
-			return messages;
+			// Reverse messages from newest to oldest to oldest to newest
+			Collections.reverse(messages);
+
+			return messages.toArray(Message[]::new);
 		}
 	}
 }
@@ -0,0 +1,182 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGStatement;
+
+/**
+ * Catalogue of the most frequently executed queries, which are prepared once
+ * per physical connection and reused every time the connection is borrowed
+ * from the pool thereafter; rather than being prepared - and parsed and
+ * planned by the server - anew on each invocation.
+ *
+ * Statements are prepared on the physical connection beneath the pool's proxy,
+ * since the pool closes every statement prepared through the proxy once the
+ * connection is returned. Hence they must not be closed by their users.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class StatementCatalogue {
+
+	public enum Query {
+		GET_CLIENT_ID_BY_ADDRESS("SELECT client_id FROM user_ips WHERE ip_address=?;"),
+		GET_CLIENT_ID_BY_EMAIL("SELECT client_id FROM users WHERE email=?;"),
+		IS_LOGGED_IN("SELECT 1 from user_ips WHERE ip_address=?;"),
+		GET_USERNAME("SELECT display_name FROM user_profiles WHERE client_id=?;"),
+		GET_EMAIL_ADDRESS("SELECT email FROM users WHERE client_id=?;"),
+		GET_USER_PROFILES("SELECT user_profiles.client_id, user_profiles.display_name, users.email, user_profiles.profile_photo_hash "
+				+ "FROM user_profiles "
+				+ "JOIN users ON users.client_id = user_profiles.client_id "
+				+ "WHERE user_profiles.client_id = ANY(?);"),
+		SELECT_USER_ICON("SELECT profile_photo FROM user_profiles WHERE client_id = ?;"),
+		SELECT_USER_ICONS("SELECT client_id, profile_photo_hash, profile_photo FROM user_profiles "
+				+ "WHERE client_id = ANY(?) AND profile_photo_hash IS NOT NULL;"),
+		GET_CHAT_REQUESTS("SELECT sender_client_id FROM chat_requests WHERE receiver_client_id=?;",
+				ResultSet.TYPE_SCROLL_SENSITIVE,
+				ResultSet.CONCUR_UPDATABLE),
+		GET_CHAT_SESSIONS_USER_BELONGS_TO("SELECT chat_session_id FROM chat_session_members WHERE member_id=?;",
+				ResultSet.TYPE_SCROLL_SENSITIVE,
+				ResultSet.CONCUR_UPDATABLE),
+		GET_MEMBERS_OF_CHAT_SESSION("SELECT member_id FROM chat_session_members WHERE chat_session_id=?;",
+				ResultSet.TYPE_SCROLL_SENSITIVE,
+				ResultSet.CONCUR_UPDATABLE),
+		SELECT_MESSAGES_BEFORE("SELECT chat_messages.message_id, chat_messages.client_id, user_profiles.display_name, "
+				+ "chat_messages.text, chat_messages.file_name, chat_messages.ts_entered, chat_messages.content_type "
+				+ "FROM chat_messages "
+				+ "LEFT JOIN user_profiles ON user_profiles.client_id = chat_messages.client_id "
+				+ "WHERE chat_messages.chat_session_id=? "
+				+ "AND chat_messages.message_id < ? "
+				+ "ORDER BY chat_messages.message_id DESC LIMIT ?;");
+
+		private final String sql;
+		private final int resultSetType;
+		private final int resultSetConcurrency;
+
+		private final LongAdder executions = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		Query(String sql) {
+			this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		}
+
+		Query(String sql, int resultSetType, int resultSetConcurrency) {
+			this.sql = sql;
+			this.resultSetType = resultSetType;
+			this.resultSetConcurrency = resultSetConcurrency;
+		}
+
+		/**
+		 * @param conn connection borrowed from the pool
+		 * @return the statement of the query prepared on the physical connection
+		 *         beneath the given one; not to be closed
+		 */
+		PreparedStatement prepare(Connection conn) throws SQLException {
+
+			Connection physicalConnection = (Connection) conn.unwrap(PGConnection.class);
+
+			// Each physical connection is only used by the thread that borrowed it, thus
+			// so are its statements
+			Map<Query, PreparedStatement> statements = getStatements(physicalConnection);
+
+			PreparedStatement pstmt = statements.get(this);
+
+			if (pstmt == null || pstmt.isClosed()) {
+				pstmt = physicalConnection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+
+				// Prepare on the server from the very first execution, rather than after the
+				// driver's default of five
+				pstmt.unwrap(PGStatement.class).setPrepareThreshold(1);
+
+				statements.put(this, pstmt);
+			}
+
+			return pstmt;
+		}
+
+		ResultSet executeQuery(PreparedStatement pstmt) throws SQLException {
+			long start = System.nanoTime();
+			try {
+				return pstmt.executeQuery();
+			} finally {
+				record(System.nanoTime() - start);
+			}
+		}
+
+		private void record(long nanos) {
+			executions.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+
+		public Metrics getMetrics() {
+			return new Metrics(executions.sum(), totalNanos.sum(), maxNanos.get());
+		}
+	}
+
+	/**
+	 * @param totalNanos time spent executing the query, excluding reading its
+	 *                   results
+	 */
+	public record Metrics(long executions, long totalNanos, long maxNanos) {
+
+		public long averageNanos() {
+			return executions == 0 ? 0 : totalNanos / executions;
+		}
+	}
+
+	private static final Map<Connection, Map<Query, PreparedStatement>> physicalConnectionsToStatements = new ConcurrentHashMap<>();
+
+	private StatementCatalogue() {}
+
+	private static Map<Query, PreparedStatement> getStatements(Connection physicalConnection) {
+
+		Map<Query, PreparedStatement> statements = physicalConnectionsToStatements.get(physicalConnection);
+
+		if (statements == null) {
+
+			// Physical connections are retired by the pool over time; their statements are
+			// discarded once another connection takes their place. This only happens when
+			// the pool opens a connection, and never blocks other connections' lookups.
+			physicalConnectionsToStatements.keySet().removeIf(StatementCatalogue::isClosed);
+
+			statements = new EnumMap<>(Query.class);
+			physicalConnectionsToStatements.put(physicalConnection, statements);
+		}
+
+		return statements;
+	}
+
+	private static boolean isClosed(Connection physicalConnection) {
+		try {
+			return physicalConnection.isClosed();
+		} catch (SQLException sqle) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database;
+
+/**
+ * @param iconHash SHA-256 of the profile photo of the client in hex; or null
+ *                 if he has none
+ * 
+ * @author Ilias Koukovinis
+ *
+ */
+public record UserProfile(int clientID, String displayName, String email, String iconHash) {}
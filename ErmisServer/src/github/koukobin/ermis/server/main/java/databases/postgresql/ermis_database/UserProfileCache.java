@@ -0,0 +1,156 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+
+/**
+ * Keeps the profiles of clients in memory, so that reading them - by far the
+ * most common query - does not borrow a connection from the pool each time.
+ *
+ * Profiles are read through the cache and invalidated by the methods of
+ * {@link ErmisDatabase.GeneralPurposeDBConnection} modifying them; besides
+ * which they expire after a while, since a profile may also be modified by
+ * another server sharing the database.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class UserProfileCache {
+
+	/**
+	 * Rough memory footprint of a profile, besides its variable length contents
+	 */
+	private static final int PROFILE_OVERHEAD_BYTES = 128;
+
+	public record Metrics(long hits, long misses, long evictions) {}
+
+	private static final Cache<Integer, UserProfile> profiles = CacheBuilder.newBuilder()
+			.maximumWeight(ServerSettings.UserProfiles.CACHE_BYTES)
+			.weigher((Integer clientID, UserProfile profile) -> PROFILE_OVERHEAD_BYTES
+					+ profile.displayName().length() * 2
+					+ (profile.email() == null ? 0 : profile.email().length() * 2)
+					+ (profile.iconHash() == null ? 0 : profile.iconHash().length() * 2))
+			.expireAfterWrite(ServerSettings.UserProfiles.CACHE_TTL_SECONDS, TimeUnit.SECONDS)
+			.recordStats()
+			.build();
+
+	/**
+	 * Incremented on every invalidation, so that profiles read before it are not
+	 * cached
+	 */
+	private static final AtomicLong generation = new AtomicLong();
+
+	private UserProfileCache() {}
+
+	/**
+	 * @return the profile of the client, or null if he has none
+	 */
+	public static UserProfile get(int clientID) {
+		return getAll(null, clientID).get(clientID);
+	}
+
+	/**
+	 * Same as {@link #get(int)}, for callers already holding a connection; so that
+	 * another one is not borrowed from the pool in the meantime.
+	 */
+	public static UserProfile get(int clientID, ErmisDatabase.GeneralPurposeDBConnection conn) {
+		return getAll(conn, clientID).get(clientID);
+	}
+
+	/**
+	 * Profiles not already in memory are selected from the database in a single
+	 * query.
+	 * 
+	 * @return the profiles of the clients; clients without one are omitted
+	 */
+	public static Map<Integer, UserProfile> getAll(int... clientIDS) {
+		return getAll(null, clientIDS);
+	}
+
+	/**
+	 * @param conn connection to select missing profiles with; or null to borrow
+	 *             one from the pool if needed
+	 */
+	private static Map<Integer, UserProfile> getAll(ErmisDatabase.GeneralPurposeDBConnection conn, int... clientIDS) {
+
+		Map<Integer, UserProfile> clientIDSToProfiles = new HashMap<>(clientIDS.length);
+		List<Integer> missing = new ArrayList<>();
+
+		for (int clientID : clientIDS) {
+			UserProfile profile = profiles.getIfPresent(clientID);
+
+			if (profile == null) {
+				missing.add(clientID);
+			} else {
+				clientIDSToProfiles.put(clientID, profile);
+			}
+		}
+
+		if (missing.isEmpty()) {
+			return clientIDSToProfiles;
+		}
+
+		long generation = UserProfileCache.generation.get();
+
+		int[] missingClientIDS = ArrayUtils.toPrimitive(missing.toArray(Integer[]::new));
+
+		Map<Integer, UserProfile> selected;
+		if (conn == null) {
+			try (ErmisDatabase.GeneralPurposeDBConnection borrowed = ErmisDatabase.getGeneralPurposeConnection()) {
+				selected = borrowed.getUserProfiles(missingClientIDS);
+			}
+		} else {
+			selected = conn.getUserProfiles(missingClientIDS);
+		}
+
+		clientIDSToProfiles.putAll(selected);
+
+		if (generation == UserProfileCache.generation.get()) {
+			profiles.putAll(selected);
+
+			// Invalidated while being cached
+			if (generation != UserProfileCache.generation.get()) {
+				profiles.invalidateAll(selected.keySet());
+			}
+		}
+
+		return clientIDSToProfiles;
+	}
+
+	static void invalidate(int clientID) {
+		generation.incrementAndGet();
+		profiles.invalidate(clientID);
+	}
+
+	public static Metrics getMetrics() {
+		CacheStats stats = profiles.stats();
+		return new Metrics(stats.hitCount(), stats.missCount(), stats.evictionCount());
+	}
+}
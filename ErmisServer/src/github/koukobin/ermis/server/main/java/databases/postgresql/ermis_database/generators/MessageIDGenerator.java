@@ -23,6 +23,8 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.sql.DataSource;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -56,6 +58,26 @@ public final class MessageIDGenerator {
 		});
 	}
 	
+	/**
+	 * Same as {@link #getMessageIDAtomic(int, Connection)}, except that a connection
+	 * is only borrowed from the data source in case the chat session's message ID
+	 * has not been initialized yet.
+	 */
+	private static AtomicInteger getMessageIDAtomic(int chatSessionID, DataSource dataSource) {
+		AtomicInteger messageID = chatSessionIDToMessageID.get(chatSessionID);
+
+		if (messageID != null) {
+			return messageID;
+		}
+
+		try (Connection conn = dataSource.getConnection()) {
+			return getMessageIDAtomic(chatSessionID, conn);
+		} catch (SQLException sqle) {
+			logger.error("Error borrowing connection to initialize message ID for chat session {}", chatSessionID, sqle);
+			throw new RuntimeException("Failed to initialize message ID", sqle);
+		}
+	}
+
     /**
      * Increment and retrieve the next message ID for the specified chat session.
      */
@@ -64,6 +86,14 @@ public final class MessageIDGenerator {
         return messageID.incrementAndGet();
     }
 
+    /**
+     * Increment and retrieve the next message ID for the specified chat session.
+     */
+    public static int incrementAndGetMessageID(int chatSessionID, DataSource dataSource) {
+        AtomicInteger messageID = getMessageIDAtomic(chatSessionID, dataSource);
+        return messageID.incrementAndGet();
+    }
+
     /**
      * Retrieve the current message ID count for the specified chat session.
      */
@@ -18,7 +18,16 @@ package github.koukobin.ermis.server.main.java.server;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import io.netty.channel.Channel;
+
 /**
+ * Registry of the chat sessions loaded by at least one online member.
+ * 
+ * Membership changes which may register or unregister a chat session happen
+ * atomically with respect to the registry, so that a member joining a chat
+ * session while its last active member leaves cannot end up in a chat session
+ * no longer registered - and thus invisible to everyone else.
+ * 
  * @author Ilias Koukovinis
  *
  */
@@ -32,19 +41,49 @@ public class ActiveChatSessions {
 		return chatSessionIDSToActiveChatSessions.get(chatSessionID);
 	}
 	
-	public static void addChatSession(int chatSessionID, ChatSession chatSession) {
-		chatSessionIDSToActiveChatSessions.put(chatSessionID, chatSession);
+	/**
+	 * @return the chat session already registered under the same ID if there is
+	 *         one; otherwise the chat session given
+	 */
+	public static ChatSession addChatSession(ChatSession chatSession) {
+		ChatSession existing = chatSessionIDSToActiveChatSessions.putIfAbsent(chatSession.getChatSessionID(), chatSession);
+		return existing == null ? chatSession : existing;
 	}
 	
 	public static void removeChatSession(int chatSessionID) {
 		chatSessionIDSToActiveChatSessions.remove(chatSessionID);
 	}
 
-	public static void addMember(int chatSessionID, ClientInfo member) {
-		chatSessionIDSToActiveChatSessions.get(chatSessionID).getActiveChannels().add(member.getChannel());
+	/**
+	 * Makes channel active in the chat session, registering the chat session if
+	 * it has meanwhile been unregistered.
+	 * 
+	 * @return the chat session registered under the chat session's ID, which the
+	 *         caller should use from now on in place of the one given
+	 */
+	public static ChatSession addMember(ChatSession chatSession, Channel channel) {
+		return chatSessionIDSToActiveChatSessions.compute(chatSession.getChatSessionID(), (Integer chatSessionID, ChatSession registered) -> {
+			ChatSession active = registered == null ? chatSession : registered;
+			active.addActiveChannel(channel);
+			return active;
+		});
 	}
 	
-	public static void removeMember(int chatSessionID, ClientInfo member) {
-		chatSessionIDSToActiveChatSessions.get(chatSessionID).getActiveChannels().remove(member.getChannel());
+	/**
+	 * Removes channel from the chat session and unregisters the chat session if it
+	 * has no active channels left.
+	 * 
+	 * @return whether the chat session remains active
+	 */
+	public static boolean removeMember(ChatSession chatSession, Channel channel) {
+		
+		chatSession.removeActiveChannel(channel);
+		
+		ChatSession active = chatSessionIDSToActiveChatSessions.computeIfPresent(chatSession.getChatSessionID(), (Integer chatSessionID, ChatSession registered) -> {
+			registered.removeActiveChannel(channel);
+			return registered.hasActiveChannels() ? registered : null;
+		});
+		
+		return active != null;
 	}
 }
@@ -0,0 +1,116 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import io.netty.channel.Channel;
+
+/**
+ * Registry of the devices each online client is connected with.
+ *
+ * Devices are keyed by their channel, since a client may be connected with
+ * several devices sharing the same address. The devices of a client can be
+ * iterated while others connect or disconnect; a client is registered with his
+ * first device and unregistered with his last one atomically, so that
+ * {@link Presence} is informed exactly once of each.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class ActiveClients {
+
+	private static final Map<Integer, Map<Channel, ClientInfo>> clientIDSToDevices = new ConcurrentHashMap<>(ServerSettings.SERVER_BACKLOG);
+
+	private ActiveClients() {}
+
+	public static void addDevice(ClientInfo clientInfo) {
+		clientIDSToDevices.compute(clientInfo.getClientID(), (Integer clientID, Map<Channel, ClientInfo> devices) -> {
+			if (devices == null) {
+				devices = new ConcurrentHashMap<>(4);
+				Presence.clientOnline(clientID, clientInfo.getChatSessions());
+			}
+
+			devices.put(clientInfo.getChannel(), clientInfo);
+			return devices;
+		});
+	}
+
+	public static void removeDevice(ClientInfo clientInfo) {
+		clientIDSToDevices.computeIfPresent(clientInfo.getClientID(), (Integer clientID, Map<Channel, ClientInfo> devices) -> {
+			devices.remove(clientInfo.getChannel());
+
+			if (devices.isEmpty()) {
+				Presence.clientOffline(clientID, clientInfo.getChatSessions());
+				return null;
+			}
+
+			return devices;
+		});
+	}
+
+	public static boolean isOnline(int clientID) {
+		return clientIDSToDevices.containsKey(clientID);
+	}
+
+	public static boolean isDevice(int clientID, Channel channel) {
+		Map<Channel, ClientInfo> devices = clientIDSToDevices.get(clientID);
+		return devices != null && devices.containsKey(channel);
+	}
+
+	/**
+	 * @return a view of the devices of the client, which reflects devices
+	 *         connecting or disconnecting while it is iterated; empty if the
+	 *         client is offline
+	 */
+	public static Collection<ClientInfo> getDevices(int clientID) {
+		Map<Channel, ClientInfo> devices = clientIDSToDevices.get(clientID);
+		return devices == null ? Collections.emptyList() : Collections.unmodifiableCollection(devices.values());
+	}
+
+	/**
+	 * @return the devices of the client connected from the given address
+	 */
+	public static List<ClientInfo> getDevices(int clientID, InetAddress address) {
+
+		List<ClientInfo> devicesWithAddress = new ArrayList<>(1);
+
+		for (ClientInfo device : getDevices(clientID)) {
+			if (device.getInetAddress().equals(address)) {
+				devicesWithAddress.add(device);
+			}
+		}
+
+		return devicesWithAddress;
+	}
+
+	/**
+	 * @return any of the devices of the client, or null if he is offline
+	 */
+	public static ClientInfo getAnyDevice(int clientID) {
+
+		Iterator<ClientInfo> devices = getDevices(clientID).iterator();
+		return devices.hasNext() ? devices.next() : null;
+	}
+}
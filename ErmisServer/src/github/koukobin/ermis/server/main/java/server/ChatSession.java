@@ -15,13 +15,19 @@
  */
 package github.koukobin.ermis.server.main.java.server;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import io.netty.channel.Channel;
 
 /**
+ * A chat session with at least one of its members online.
+ * 
+ * Members are added and removed from any thread, while messages are broadcast
+ * far more often than members join or leave; hence membership is kept in
+ * copy-on-write lists, whose iterators traverse a snapshot without locking.
+ * 
  * @author Ilias Koukovinis
  *
  */
@@ -29,44 +35,66 @@ public final class ChatSession {
 
 	private final int chatSessionID;
 
-	private List<Channel> activeMembers;
-	private List<Integer> membersClientIDS;
+	private final CopyOnWriteArrayList<Channel> activeChannels;
+	private final CopyOnWriteArrayList<Integer> membersClientIDS;
 
-	public ChatSession(int chatSessionID) {
+	public ChatSession(int chatSessionID, List<Integer> membersClientIDS) {
 		this.chatSessionID = chatSessionID;
-		this.activeMembers = new ArrayList<>();
-		this.membersClientIDS = new ArrayList<>();
+		this.activeChannels = new CopyOnWriteArrayList<>();
+		this.membersClientIDS = new CopyOnWriteArrayList<>(membersClientIDS);
 	}
 
-	public ChatSession(int chatSessionID, List<Channel> activeMembers, List<Integer> membersClientIDS) {
-		this.chatSessionID = chatSessionID;
-		this.activeMembers = activeMembers;
-		this.membersClientIDS = membersClientIDS;
+	/**
+	 * Use {@link ActiveChatSessions#addMember(ChatSession, Channel)} instead, which
+	 * ensures the chat session is registered as active.
+	 * 
+	 * @return false if the channel was already active in the chat session
+	 */
+	boolean addActiveChannel(Channel channel) {
+		return activeChannels.addIfAbsent(channel);
+	}
+
+	boolean removeActiveChannel(Channel channel) {
+		return activeChannels.remove(channel);
 	}
 
-	public void setActiveMembers(List<Channel> activeMembers) {
-		this.activeMembers = activeMembers;
+	public boolean isActive(Channel channel) {
+		return activeChannels.contains(channel);
 	}
 
-	public void setMembers(List<Integer> membersClientIDS) {
-		this.membersClientIDS = membersClientIDS;
+	public boolean hasActiveChannels() {
+		return !activeChannels.isEmpty();
 	}
 
 	public int getChatSessionID() {
 		return chatSessionID;
 	}
 
+	/**
+	 * Iterate using the list's iterator - i.e for-each loops - which traverses
+	 * a snapshot of the list; indexes may shift while iterating otherwise.
+	 * 
+	 * @return an unmodifiable view of the channels active in the chat session
+	 */
 	public List<Channel> getActiveChannels() {
-		return activeMembers;
+		return Collections.unmodifiableList(activeChannels);
 	}
 
+	/**
+	 * @return an unmodifiable view of the client IDs of the chat session's members
+	 */
 	public List<Integer> getActiveMembers() {
-		return membersClientIDS;
+		return Collections.unmodifiableList(membersClientIDS);
 	}
 
+	/**
+	 * A chat session may be loaded more than once - for instance, after it has
+	 * become inactive and was loaded again - hence chat sessions are identified
+	 * solely by their ID.
+	 */
 	@Override
 	public int hashCode() {
-		return Objects.hash(chatSessionID);
+		return Integer.hashCode(chatSessionID);
 	}
 
 	@Override
@@ -85,14 +113,12 @@ public final class ChatSession {
 		}
 		
 		ChatSession other = (ChatSession) obj;
-		return Objects.equals(activeMembers, other.activeMembers)
-				&& chatSessionID == other.chatSessionID
-				&& Objects.equals(membersClientIDS, other.membersClientIDS);
+		return chatSessionID == other.chatSessionID;
 	}
 
 	@Override
 	public String toString() {
-		return "ChatSession [chatSessionID=" + chatSessionID + ", activeMembers=" + activeMembers + ", members="
+		return "ChatSession [chatSessionID=" + chatSessionID + ", activeChannels=" + activeChannels + ", members="
 				+ membersClientIDS + "]";
 	}
 }
@@ -16,9 +16,12 @@
 package github.koukobin.ermis.server.main.java.server;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import io.netty.channel.Channel;
 import io.netty.channel.epoll.EpollSocketChannel;
@@ -33,23 +36,35 @@ public final class ClientInfo {
 	private String email;
 	private int clientID;
 	
+	/**
+	 * Ordered as returned to the client by FETCH_CHAT_SESSIONS, since clients may
+	 * address chat sessions by their index
+	 */
 	private List<ChatSession> chatSessions;
+	
+	/**
+	 * The same chat sessions keyed by their id; for clients addressing chat
+	 * sessions by id and for checking membership
+	 */
+	private Map<Integer, ChatSession> chatSessionIDSToChatSessions;
+	
 	private List<Integer> chatRequestsClientIDS;
 	
 	private EpollSocketChannel channel;
 
 	public ClientInfo() {
-		chatSessions = new ArrayList<>();
-		chatRequestsClientIDS = new ArrayList<>();
+		chatSessions = new CopyOnWriteArrayList<>();
+		chatSessionIDSToChatSessions = new ConcurrentHashMap<>();
+		chatRequestsClientIDS = new CopyOnWriteArrayList<>();
 	}
 
 	public ClientInfo(String username, String email, int clientID, List<ChatSession> chatSessions, List<Integer> chatRequests, EpollSocketChannel channel) {
 		this.username = username;
 		this.email = email;
 		this.clientID = clientID;
-		this.chatSessions = chatSessions;
-		this.chatRequestsClientIDS = chatRequests;
 		this.channel = channel;
+		setChatSessions(chatSessions);
+		setChatRequests(chatRequests);
 	}
 
 	public void setUsername(String username) {
@@ -64,12 +79,47 @@ public final class ClientInfo {
 		this.clientID = clientID;
 	}
 
-	public void setChatSessions(List<ChatSession> chatSessions) {
-		this.chatSessions = chatSessions;
+	/**
+	 * Chat sessions are added and removed by other members' threads as well;
+	 * hence they are copied into thread-safe collections.
+	 */
+	public synchronized void setChatSessions(List<ChatSession> chatSessions) {
+		
+		Map<Integer, ChatSession> chatSessionIDSToChatSessions = new ConcurrentHashMap<>(chatSessions.size());
+		for (ChatSession chatSession : chatSessions) {
+			chatSessionIDSToChatSessions.put(chatSession.getChatSessionID(), chatSession);
+		}
+		
+		this.chatSessions = new CopyOnWriteArrayList<>(chatSessions);
+		this.chatSessionIDSToChatSessions = chatSessionIDSToChatSessions;
+	}
+	
+	public synchronized void addChatSession(ChatSession chatSession) {
+		if (chatSessionIDSToChatSessions.putIfAbsent(chatSession.getChatSessionID(), chatSession) == null) {
+			chatSessions.add(chatSession);
+		}
+	}
+	
+	public synchronized void removeChatSession(ChatSession chatSession) {
+		chatSessionIDSToChatSessions.remove(chatSession.getChatSessionID());
+		chatSessions.remove(chatSession);
+	}
+	
+	/**
+	 * Replaces the chat session held under the same id with the one given
+	 */
+	public synchronized void replaceChatSession(ChatSession chatSession) {
+		if (chatSessionIDSToChatSessions.replace(chatSession.getChatSessionID(), chatSession) != null) {
+			chatSessions.replaceAll((ChatSession cs) -> cs.equals(chatSession) ? chatSession : cs);
+		}
 	}
 
+	/**
+	 * Chat requests are added by other clients' threads as well; hence they are
+	 * copied into a thread-safe collection.
+	 */
 	public void setChatRequests(List<Integer> chatRequests) {
-		this.chatRequestsClientIDS = chatRequests;
+		this.chatRequestsClientIDS = new CopyOnWriteArrayList<>(chatRequests);
 	}
 
 	public void setChannel(Channel channel) {
@@ -88,8 +138,19 @@ public final class ClientInfo {
 		return clientID;
 	}
 
+	/**
+	 * @return an unmodifiable view, which reflects chat sessions added or removed
+	 *         later on
+	 */
 	public List<ChatSession> getChatSessions() {
-		return chatSessions;
+		return Collections.unmodifiableList(chatSessions);
+	}
+	
+	/**
+	 * @return the chat session or null if the client is not a member of it
+	 */
+	public ChatSession getChatSession(int chatSessionID) {
+		return chatSessionIDSToChatSessions.get(chatSessionID);
 	}
 
 	public List<Integer> getChatRequests() {
@@ -0,0 +1,183 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+import github.koukobin.ermis.common.message_types.ContentType;
+import github.koukobin.ermis.common.message_types.Message;
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Keeps pages of chat history already encoded in the form sent with
+ * GET_WRITTEN_TEXT, so that pages requested repeatedly - such as those of busy
+ * group chats - are not encoded all over again each time.
+ *
+ * A page is identified by its chat session, the range of message ids it spans
+ * and the number of messages in it; which no longer match once a message in
+ * the range is deleted. Pages are nonetheless invalidated once a message in
+ * them is deleted or the username of a client who wrote any of them changes.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class EncodedHistoryPages {
+
+	private record PageKey(int chatSessionID, int firstMessageID, int lastMessageID, int numberOfMessages) {}
+
+	/**
+	 * @param clientIDS distinct ids of the clients who wrote the messages, sorted
+	 */
+	private record Page(ByteBuf encoded, int[] clientIDS) {}
+
+	private static final Cache<PageKey, Page> pages = CacheBuilder.newBuilder()
+			.maximumWeight(ServerSettings.EncodedHistoryPages.CACHE_BYTES)
+			.weigher((PageKey key, Page page) -> page.encoded().readableBytes())
+			.removalListener((RemovalNotification<PageKey, Page> notification) -> notification.getValue().encoded().release())
+			.build();
+
+	/**
+	 * Incremented on every invalidation, so that pages encoded from messages read
+	 * before it are not cached
+	 */
+	private static final AtomicLong generation = new AtomicLong();
+
+	private EncodedHistoryPages() {}
+
+	/**
+	 * To be called before reading the messages of a page, and passed on to
+	 * {@link #get(int, Message[], long)}
+	 */
+	public static long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @param messages   in ascending order
+	 * @param generation as returned by {@link #getGeneration()} before messages
+	 *                   were read
+	 * @return the encoded messages; the caller is responsible for releasing it
+	 */
+	public static ByteBuf get(int chatSessionID, Message[] messages, long generation) {
+
+		if (messages.length == 0) {
+			return Unpooled.EMPTY_BUFFER;
+		}
+
+		PageKey key = new PageKey(chatSessionID, messages[0].getMessageID(), messages[messages.length - 1].getMessageID(), messages.length);
+
+		// Retained while the page is held under the cache's lock; it is only released
+		// once removed from the cache, so it cannot be released in the meantime
+		ByteBuf[] cached = new ByteBuf[1];
+		pages.asMap().computeIfPresent(key, (PageKey k, Page page) -> {
+			cached[0] = page.encoded().retainedDuplicate();
+			return page;
+		});
+
+		if (cached[0] != null) {
+			return cached[0];
+		}
+
+		ByteBuf encoded = encode(messages);
+
+		if (generation == EncodedHistoryPages.generation.get()) {
+			pages.put(key, new Page(encoded.retain(), getClientIDS(messages)));
+
+			// Invalidated while being cached
+			if (generation != EncodedHistoryPages.generation.get()) {
+				pages.invalidate(key);
+			}
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * Invalidates the pages containing the message
+	 */
+	public static void invalidate(int chatSessionID, int messageID) {
+		generation.incrementAndGet();
+		pages.asMap().keySet().removeIf((PageKey key) -> key.chatSessionID() == chatSessionID
+				&& key.firstMessageID() <= messageID
+				&& key.lastMessageID() >= messageID);
+	}
+
+	public static void invalidateChatSession(int chatSessionID) {
+		generation.incrementAndGet();
+		pages.asMap().keySet().removeIf((PageKey key) -> key.chatSessionID() == chatSessionID);
+	}
+
+	/**
+	 * Invalidates the pages containing messages of the client
+	 */
+	public static void invalidateClient(int clientID) {
+		generation.incrementAndGet();
+		pages.asMap().values().removeIf((Page page) -> Arrays.binarySearch(page.clientIDS(), clientID) >= 0);
+	}
+
+	private static ByteBuf encode(Message[] messages) {
+
+		ByteBuf encoded = PooledByteBufAllocator.DEFAULT.directBuffer(messages.length * 64);
+
+		for (int i = 0; i < messages.length; i++) {
+
+			Message message = messages[i];
+			byte[] messageBytes = message.getText();
+			byte[] fileNameBytes = message.getFileName();
+			byte[] usernameBytes = message.getUsername().getBytes();
+			long timeWritten = message.getTimeWritten();
+			ContentType contentType = message.getContentType();
+
+			encoded.writeInt((contentType.id));
+			encoded.writeInt(message.getClientID());
+			encoded.writeInt(message.getMessageID());
+
+			encoded.writeInt(usernameBytes.length);
+			encoded.writeBytes(usernameBytes);
+
+			encoded.writeLong(timeWritten);
+
+			switch (contentType) {
+			case TEXT -> {
+				encoded.writeInt(messageBytes.length);
+				encoded.writeBytes(messageBytes);
+			}
+			case FILE, IMAGE -> {
+				encoded.writeInt(fileNameBytes.length);
+				encoded.writeBytes(fileNameBytes);
+			}
+			}
+		}
+
+		return encoded;
+	}
+
+	private static int[] getClientIDS(Message[] messages) {
+		return Arrays.stream(messages)
+				.mapToInt(Message::getClientID)
+				.distinct()
+				.sorted()
+				.toArray();
+	}
+}
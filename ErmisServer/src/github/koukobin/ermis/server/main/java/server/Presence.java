@@ -0,0 +1,167 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Throwables;
+
+import github.koukobin.ermis.common.message_types.ServerMessageType;
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+/**
+ * Informs the members of the chat sessions of a client once he goes online or
+ * offline; as reported by {@link ActiveClients}.
+ *
+ * Changes are gathered over a window and each client receives at most one
+ * {@link ServerMessageType#PRESENCE_UPDATES} frame per window, containing all of
+ * them. A client who disconnects and reconnects within the same window - as is
+ * the case with thousands of clients at once after a network blip - is never
+ * reported at all.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class Presence {
+
+	private static final Logger logger = LogManager.getLogger("server");
+
+	/**
+	 * @param wasOnline    whether the client was online at the start of the window
+	 * @param chatSessions chat sessions of the client whose members are to be
+	 *                     informed
+	 */
+	private record PendingChange(boolean wasOnline, List<ChatSession> chatSessions) {}
+
+	private record Update(int chatSessionID, int clientID, boolean isOnline) {}
+
+	private static final Object lock = new Object();
+
+	// Guarded by lock
+	private static Map<Integer, PendingChange> pendingChanges = new HashMap<>();
+	private static boolean isFlushScheduled;
+
+	private static final ScheduledExecutorService notifier = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+		Thread thread = new Thread(r, "Thread-PresenceNotifier");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private Presence() {}
+
+	/**
+	 * @param chatSessions chat sessions of the client; read once the window ends,
+	 *                     thus it should reflect any chat sessions added later
+	 */
+	static void clientOnline(int clientID, List<ChatSession> chatSessions) {
+		addPendingChange(clientID, false, chatSessions);
+	}
+
+	static void clientOffline(int clientID, List<ChatSession> chatSessions) {
+		addPendingChange(clientID, true, chatSessions);
+	}
+
+	private static void addPendingChange(int clientID, boolean wasOnline, List<ChatSession> chatSessions) {
+		synchronized (lock) {
+			// Only the state at the start of the window matters
+			pendingChanges.putIfAbsent(clientID, new PendingChange(wasOnline, chatSessions));
+
+			if (!isFlushScheduled) {
+				isFlushScheduled = true;
+				notifier.schedule(Presence::flush, ServerSettings.Presence.DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private static void flush() {
+
+		Map<Integer, PendingChange> changes;
+		synchronized (lock) {
+			changes = pendingChanges;
+			pendingChanges = new HashMap<>();
+			isFlushScheduled = false;
+		}
+
+		try {
+			Map<Channel, List<Update>> recipientsToUpdates = new IdentityHashMap<>();
+
+			for (Map.Entry<Integer, PendingChange> entry : changes.entrySet()) {
+
+				int clientID = entry.getKey();
+				boolean isOnline = ActiveClients.isOnline(clientID);
+
+				// Went offline and back online - or vice versa - within the window
+				if (isOnline == entry.getValue().wasOnline()) {
+					continue;
+				}
+
+				for (ChatSession chatSession : entry.getValue().chatSessions()) {
+
+					// The instance the client holds may have been unregistered since
+					ChatSession activeChatSession = ActiveChatSessions.getChatSession(chatSession.getChatSessionID());
+
+					if (activeChatSession == null) {
+						continue;
+					}
+
+					Update update = new Update(activeChatSession.getChatSessionID(), clientID, isOnline);
+					for (Channel recipient : activeChatSession.getActiveChannels()) {
+						if (ActiveClients.isDevice(clientID, recipient)) {
+							continue;
+						}
+
+						recipientsToUpdates.computeIfAbsent(recipient, (Channel channel) -> new ArrayList<>()).add(update);
+					}
+				}
+			}
+
+			for (Map.Entry<Channel, List<Update>> entry : recipientsToUpdates.entrySet()) {
+
+				Channel recipient = entry.getKey();
+				List<Update> updates = entry.getValue();
+
+				ByteBuf payload = recipient.alloc().ioBuffer(Integer.BYTES * 2 + updates.size() * (Integer.BYTES * 2 + 1));
+				payload.writeInt(ServerMessageType.PRESENCE_UPDATES.id);
+				payload.writeInt(updates.size());
+				for (Update update : updates) {
+					payload.writeInt(update.chatSessionID());
+					payload.writeInt(update.clientID());
+					payload.writeBoolean(update.isOnline());
+				}
+
+				recipient.writeAndFlush(payload);
+			}
+		} catch (Exception e) {
+			logger.error(Throwables.getStackTraceAsString(e));
+		}
+	}
+
+	public static void shutdown() {
+		notifier.shutdownNow();
+	}
+}
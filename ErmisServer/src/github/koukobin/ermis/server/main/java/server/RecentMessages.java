@@ -0,0 +1,356 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import github.koukobin.ermis.common.message_types.Message;
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+
+/**
+ * Keeps the most recent messages of each chat session in memory, so that the
+ * first page of its history - which almost every client requests when opening
+ * the chat session - is served without querying the database.
+ *
+ * Messages are added as soon as they are sent, before being persisted; hence a
+ * chat session's messages are only complete once merged with those read from
+ * the database the first time its history is requested. Until then - or after
+ * a message is deleted - the chat session's history is read from the database.
+ *
+ * The memory used by all chat sessions is bounded; once exceeded, chat sessions
+ * used least recently are evicted, preferring those no longer active.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class RecentMessages {
+
+	private static final int MESSAGES_PER_CHAT_SESSION = ServerSettings.NUMBER_OF_MESSAGES_TO_READ_FROM_THE_DATABASE_AT_A_TIME;
+	private static final long MAX_BYTES = ServerSettings.RecentMessages.CACHE_BYTES;
+
+	/**
+	 * Rough memory footprint of a message, besides its variable length contents
+	 */
+	private static final int MESSAGE_OVERHEAD_BYTES = 96;
+
+	private static class ChatSessionMessages {
+
+		/**
+		 * Sorted by message id in ascending order
+		 */
+		private final ArrayDeque<Message> messages = new ArrayDeque<>(MESSAGES_PER_CHAT_SESSION);
+		private boolean isComplete;
+		private boolean isEvicted;
+		private long bytes;
+
+		private volatile long lastUsedNanos = System.nanoTime();
+	}
+
+	/**
+	 * Each chat session's messages are guarded by their own monitor, so that
+	 * messages sent in different chat sessions do not contend with one another
+	 */
+	private static final Map<Integer, ChatSessionMessages> chatSessionIDSToMessages = new ConcurrentHashMap<>();
+	private static final AtomicLong totalBytes = new AtomicLong();
+	private static final AtomicBoolean isEvicting = new AtomicBoolean();
+
+	/**
+	 * Incremented whenever messages are removed or changed, so that messages read
+	 * from the database before it are not merged
+	 */
+	private static final AtomicLong generation = new AtomicLong();
+
+	private RecentMessages() {}
+
+	/**
+	 * To be called before reading the most recent messages of a chat session from
+	 * the database, and passed on to {@link #merge(int, Message[], long)}
+	 */
+	public static long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @return the most recent messages of the chat session in ascending order; or
+	 *         null if they are not all in memory
+	 */
+	public static Message[] getRecent(int chatSessionID) {
+
+		ChatSessionMessages recent = chatSessionIDSToMessages.get(chatSessionID);
+
+		if (recent == null) {
+			return null;
+		}
+
+		synchronized (recent) {
+
+			if (!recent.isComplete || recent.isEvicted) {
+				return null;
+			}
+
+			recent.lastUsedNanos = System.nanoTime();
+			return recent.messages.toArray(Message[]::new);
+		}
+	}
+
+	/**
+	 * Merges the most recent messages of the chat session read from the database
+	 * with those sent meanwhile, after which they are considered complete - unless
+	 * messages were removed or changed since they were read, in which case they are
+	 * not kept.
+	 *
+	 * @param fromDatabase messages in ascending order
+	 * @param generation   as returned by {@link #getGeneration()} before
+	 *                     fromDatabase was read
+	 * @return the most recent messages of the chat session in ascending order
+	 */
+	public static Message[] merge(int chatSessionID, Message[] fromDatabase, long generation) {
+
+		Message[] messages;
+
+		while (true) {
+			ChatSessionMessages recent = chatSessionIDSToMessages.computeIfAbsent(chatSessionID, (Integer id) -> new ChatSessionMessages());
+
+			synchronized (recent) {
+
+				if (recent.isEvicted) {
+					continue;
+				}
+
+				TreeMap<Integer, Message> merged = new TreeMap<>();
+				for (Message message : fromDatabase) {
+					merged.put(message.getMessageID(), message);
+				}
+
+				for (Message message : recent.messages) {
+					merged.put(message.getMessageID(), message);
+				}
+
+				while (merged.size() > MESSAGES_PER_CHAT_SESSION) {
+					merged.pollFirstEntry();
+				}
+
+				messages = merged.values().toArray(Message[]::new);
+
+				// Checked while holding the monitor, since removals take it after incrementing the generation
+				if (generation != RecentMessages.generation.get()) {
+					return messages;
+				}
+
+				long bytes = 0;
+				recent.messages.clear();
+				for (Message message : messages) {
+					recent.messages.addLast(message);
+					bytes += bytesOf(message);
+				}
+
+				totalBytes.addAndGet(bytes - recent.bytes);
+				recent.bytes = bytes;
+				recent.isComplete = true;
+				recent.lastUsedNanos = System.nanoTime();
+			}
+
+			break;
+		}
+
+		evictIfNecessary(chatSessionID);
+
+		return messages;
+	}
+
+	public static void add(Message message) {
+
+		while (true) {
+			ChatSessionMessages recent = chatSessionIDSToMessages.computeIfAbsent(message.getChatSessionID(), (Integer chatSessionID) -> new ChatSessionMessages());
+
+			synchronized (recent) {
+
+				if (recent.isEvicted) {
+					continue;
+				}
+
+				recent.lastUsedNanos = System.nanoTime();
+
+				if (recent.messages.size() >= MESSAGES_PER_CHAT_SESSION) {
+					Message oldest = recent.messages.peekFirst();
+
+					if (oldest.getMessageID() > message.getMessageID()) {
+						return;
+					}
+
+					recent.messages.pollFirst();
+					recent.bytes -= bytesOf(oldest);
+					totalBytes.addAndGet(-bytesOf(oldest));
+				}
+
+				// Messages sent concurrently may arrive slightly out of order
+				if (recent.messages.isEmpty() || recent.messages.peekLast().getMessageID() < message.getMessageID()) {
+					recent.messages.addLast(message);
+				} else {
+					Message[] messages = recent.messages.toArray(Message[]::new);
+					recent.messages.clear();
+
+					boolean isAdded = false;
+					for (Message m : messages) {
+						if (!isAdded && m.getMessageID() > message.getMessageID()) {
+							recent.messages.addLast(message);
+							isAdded = true;
+						}
+						recent.messages.addLast(m);
+					}
+				}
+
+				recent.bytes += bytesOf(message);
+				totalBytes.addAndGet(bytesOf(message));
+			}
+
+			break;
+		}
+
+		evictIfNecessary(message.getChatSessionID());
+	}
+
+	/**
+	 * Removes the message - which was either deleted or failed to be persisted.
+	 * The chat session's messages are no longer complete thereafter, since the
+	 * oldest of them is now missing.
+	 */
+	public static void remove(int chatSessionID, int messageID) {
+
+		generation.incrementAndGet();
+
+		ChatSessionMessages recent = chatSessionIDSToMessages.get(chatSessionID);
+
+		if (recent == null) {
+			return;
+		}
+
+		synchronized (recent) {
+
+			Iterator<Message> iterator = recent.messages.iterator();
+			while (iterator.hasNext()) {
+				Message message = iterator.next();
+
+				if (message.getMessageID() == messageID) {
+					iterator.remove();
+					recent.bytes -= bytesOf(message);
+					totalBytes.addAndGet(-bytesOf(message));
+					break;
+				}
+			}
+
+			recent.isComplete = false;
+		}
+	}
+
+	public static void removeChatSession(int chatSessionID) {
+
+		generation.incrementAndGet();
+
+		ChatSessionMessages recent = chatSessionIDSToMessages.remove(chatSessionID);
+
+		if (recent != null) {
+			evict(recent);
+		}
+	}
+
+	public static void changeUsername(int clientID, String username) {
+
+		generation.incrementAndGet();
+
+		for (ChatSessionMessages recent : chatSessionIDSToMessages.values()) {
+			synchronized (recent) {
+				for (Message message : recent.messages) {
+					if (message.getClientID() == clientID) {
+						recent.bytes += bytesOf(username) - bytesOf(message.getUsername());
+						totalBytes.addAndGet(bytesOf(username) - bytesOf(message.getUsername()));
+						message.setUsername(username);
+					}
+				}
+			}
+		}
+	}
+
+	private record EvictionCandidate(int chatSessionID, ChatSessionMessages recent, boolean isActive, long lastUsedNanos) {}
+
+	private static void evictIfNecessary(int chatSessionIDInUse) {
+
+		// Only a single thread evicts at a time; the rest carry on regardless
+		if (totalBytes.get() <= MAX_BYTES || !isEvicting.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			List<EvictionCandidate> candidates = new ArrayList<>(chatSessionIDSToMessages.size());
+			chatSessionIDSToMessages.forEach((Integer chatSessionID, ChatSessionMessages recent) -> {
+				if (chatSessionID != chatSessionIDInUse) {
+					candidates.add(new EvictionCandidate(chatSessionID, recent,
+							ActiveChatSessions.getChatSession(chatSessionID) != null, recent.lastUsedNanos));
+				}
+			});
+
+			// Inactive chat sessions first, then those used least recently
+			candidates.sort(Comparator.comparing(EvictionCandidate::isActive)
+					.thenComparingLong(EvictionCandidate::lastUsedNanos));
+
+			for (EvictionCandidate candidate : candidates) {
+
+				if (totalBytes.get() <= MAX_BYTES) {
+					break;
+				}
+
+				if (chatSessionIDSToMessages.remove(candidate.chatSessionID(), candidate.recent())) {
+					evict(candidate.recent());
+				}
+			}
+		} finally {
+			isEvicting.set(false);
+		}
+	}
+
+	/**
+	 * To be called once the chat session's messages are removed from the map;
+	 * anyone still holding them retries with a fresh instance
+	 */
+	private static void evict(ChatSessionMessages recent) {
+		synchronized (recent) {
+			recent.isEvicted = true;
+			totalBytes.addAndGet(-recent.bytes);
+			recent.bytes = 0;
+			recent.messages.clear();
+		}
+	}
+
+	private static long bytesOf(Message message) {
+		return MESSAGE_OVERHEAD_BYTES
+				+ (message.getText() == null ? 0 : message.getText().length)
+				+ (message.getFileName() == null ? 0 : message.getFileName().length)
+				+ bytesOf(message.getUsername());
+	}
+
+	private static long bytesOf(String username) {
+		return username == null ? 0 : username.length() * 2L;
+	}
+}
@@ -31,11 +31,17 @@ import org.apache.logging.log4j.Logger;
 import com.google.common.base.Throwables;
 
 import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.ChatMessagesWriter;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.ErmisDatabase;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.StatementCatalogue;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.UserProfileCache;
 import github.koukobin.ermis.server.main.java.server.codec.Encoder;
 import github.koukobin.ermis.server.main.java.server.codec.SimpleDecoder;
 import github.koukobin.ermis.server.main.java.server.netty_handlers.StartingEntryHandler;
+import github.koukobin.ermis.server.main.java.server.util.BlockingWorkExecutor;
 import github.koukobin.ermis.server.main.java.server.util.EmailerService;
+import github.koukobin.ermis.server.main.java.server.util.FlushCoalescingHandler;
+import github.koukobin.ermis.server.main.java.server.util.SlowConsumerHandler;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
@@ -44,6 +50,7 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.epoll.EpollSocketChannel;
@@ -62,6 +69,7 @@ import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslProvider;
 import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.CharsetUtil;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.netty.util.internal.logging.Log4J2LoggerFactory;
@@ -130,7 +138,10 @@ public final class Server {
 				.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
 				.option(ChannelOption.SO_BACKLOG, ServerSettings.SERVER_BACKLOG)
 				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, ServerSettings.CONNECT_TIMEOUT_MILLIS)
-				.childOption(ChannelOption.SO_KEEPALIVE, true);
+				.childOption(ChannelOption.SO_KEEPALIVE, true)
+				.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+						ServerSettings.SlowConsumers.WRITE_BUFFER_LOW_WATER_MARK_BYTES,
+						ServerSettings.SlowConsumers.WRITE_BUFFER_HIGH_WATER_MARK_BYTES));
 			
 			// If server isn't production ready we add a logging handler for more detailed logging
 			if (!ServerSettings.IS_PRODUCTION_READY) {
@@ -198,6 +209,12 @@ public final class Server {
 			engine.setUseClientMode(false);
 			pipeline.addLast("ssl", new SslHandler(engine));
 			
+			if (ServerSettings.FlushCoalescing.IS_ENABLED) {
+				pipeline.addLast("flushCoalescer", new FlushCoalescingHandler(
+						ServerSettings.FlushCoalescing.MAX_PENDING_FLUSHES,
+						ServerSettings.FlushCoalescing.DELAY_MICROS));
+			}
+			
 			// Add protocol detector (a custom handler to detect HTTP or custom protocol)
 			pipeline.addLast("protocolDetector", new ProtocolDetectorHandler());
 		}
@@ -224,7 +241,11 @@ public final class Server {
 													 * to send simple small messages and will be replaced with the main decoder
 													 * once it reaches the message handler
 													 */));
+					// Streams file downloads chunk by chunk as the channel becomes writable;
+					// placed below the encoder since the chunks are already framed
+					ctx.pipeline().addLast("chunkedWriter", new ChunkedWriteHandler());
 					ctx.pipeline().addLast("encoder", new Encoder());
+					ctx.pipeline().addLast("slowConsumerHandler", new SlowConsumerHandler());
 
 					ClientInfo clientInfo = new ClientInfo();
 					clientInfo.setChannel(ctx.channel());
@@ -252,6 +273,24 @@ public final class Server {
 		workerGroup.shutdownGracefully();
 		bossGroup.shutdownGracefully();
 
+		BlockingWorkExecutor.shutdown();
+		ChatMessagesWriter.shutdown();
+		Presence.shutdown();
+
+		SlowConsumerHandler.Metrics slowConsumers = SlowConsumerHandler.getMetrics();
+		logger.info("Slow consumers; dropped messages: {}, deferred messages: {}, disconnected clients: {}",
+				slowConsumers.droppedMessages(), slowConsumers.deferredMessages(), slowConsumers.disconnectedClients());
+
+		UserProfileCache.Metrics userProfiles = UserProfileCache.getMetrics();
+		logger.info("User profile cache; hits: {}, misses: {}, evictions: {}",
+				userProfiles.hits(), userProfiles.misses(), userProfiles.evictions());
+
+		for (StatementCatalogue.Query query : StatementCatalogue.Query.values()) {
+			StatementCatalogue.Metrics statement = query.getMetrics();
+			logger.info("Statement {}; executions: {}, average: {}us, max: {}us",
+					query, statement.executions(), statement.averageNanos() / 1000, statement.maxNanos() / 1000);
+		}
+
 		Server.isRunning.set(false);
 		
 		logger.info("Server stopped succesfully on port {} and at address {}",
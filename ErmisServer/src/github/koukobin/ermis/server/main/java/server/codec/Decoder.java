@@ -19,55 +19,137 @@ import java.util.List;
 
 import github.koukobin.ermis.server.main.java.server.util.MessageByteBufCreator;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 
 /**
+ * Decodes frames of the form [length (int)][payload (length bytes)].
+ * 
+ * Each frame is validated exactly once - when it has been received in its
+ * entirety - and is forwarded as a retained slice of the cumulation buffer,
+ * without being copied.
+ * 
  * @author Ilias Koukovinis
  *
  */
-public abstract class Decoder extends ReplayingDecoder<ByteBuf> {
+public abstract class Decoder extends ByteToMessageDecoder {
 
-	private boolean handleMessageSuccessfull;
-	private boolean hasReadLength = false;
-	private int length;
+	/**
+	 * Frames longer than this are accumulated in a composite buffer rather than
+	 * being merged into a single one, so that the bytes already received are not
+	 * copied every time the cumulation buffer needs to expand.
+	 */
+	private static final int COMPOSITE_CUMULATION_THRESHOLD = 65536; // 64 KB
 
-	protected Decoder() {}
+	private final int maxFrameLength;
+
+	private int length = -1;
+	private long bytesToDiscard;
+
+	/**
+	 * @param maxFrameLength frames longer than this are discarded without being
+	 *                       accumulated
+	 */
+	protected Decoder(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
 	
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
 
-		if (!hasReadLength) {
+		if (bytesToDiscard > 0) {
+			discard(in);
+			return;
+		}
+
+		if (length == -1) {
+
+			if (in.readableBytes() < Integer.BYTES) {
+				return;
+			}
 
 			length = in.readInt();
 
-			int readerIndex = in.readerIndex();
-			handleMessageSuccessfull = handleMessage(ctx, length, in);
-			in.readerIndex(readerIndex);
+			if (length < 0) {
+				// Framing is irrecoverable at this point since there is no telling where the
+				// next frame begins
+				createErrorResponse(ctx, "Invalid message length");
+				in.skipBytes(in.readableBytes());
+				ctx.close();
+				return;
+			}
+
+			if (length > maxFrameLength) {
+				sendMessageExceedsMaximumMessageLength(ctx, maxFrameLength);
+				bytesToDiscard = length;
+				length = -1;
+				discard(in);
+				return;
+			}
+
+			if (length > COMPOSITE_CUMULATION_THRESHOLD) {
+				setCumulator(COMPOSITE_CUMULATOR);
+			}
+		}
+
+		if (in.readableBytes() < length) {
+			return;
+		}
+
+		int frameLength = length;
+		length = -1;
+		setCumulator(MERGE_CUMULATOR);
+
+		ByteBuf frame = decodeFrame(ctx, in.readRetainedSlice(frameLength));
+
+		if (frame == null) {
+			return;
+		}
 
-			checkpoint();
-			hasReadLength = true;
+		boolean handleMessageSuccessfull;
+		try {
+			handleMessageSuccessfull = handleMessage(ctx, frame.readableBytes(), frame.duplicate());
+		} catch (RuntimeException re) {
+			frame.release();
+			throw re;
 		}
 
 		if (handleMessageSuccessfull) {
-			ByteBuf payload = Unpooled.buffer(length);
-			in.readBytes(payload);
-			out.add(payload);
+			out.add(frame);
 		} else {
-			in.skipBytes(length);
-			handleMessageSuccessfull = false;
+			frame.release();
 		}
+	}
+
+	/**
+	 * Invoked once per frame, before it is validated, so that subclasses can
+	 * transform it; for instance decompress it. The default implementation
+	 * returns the frame as is.
+	 * 
+	 * @param ctx
+	 * @param frame the frame's payload; must be released if it is not returned
+	 * @return the frame to be validated and forwarded, or null if the frame is to
+	 *         be dropped
+	 */
+	protected ByteBuf decodeFrame(ChannelHandlerContext ctx, ByteBuf frame) {
+		return frame;
+	}
 
-		hasReadLength = false;
-		checkpoint();
+	private void discard(ByteBuf in) {
+		int bytesDiscarded = (int) Math.min(bytesToDiscard, in.readableBytes());
+		in.skipBytes(bytesDiscarded);
+		bytesToDiscard -= bytesDiscarded;
 	}
 	
 	/**
+	 * Validates a frame; invoked once per frame after it has been received in
+	 * its entirety.
 	 * 
 	 * @param ctx
-	 * @param length
-	 * @param in
+	 * @param length the length of the frame, as returned by
+	 *               {@link #decodeFrame(ChannelHandlerContext, ByteBuf)}
+	 * @param in     the frame's payload; reading it does not affect the frame
+	 *               forwarded
 	 * @return Whether or not handling message was succesfull
 	 */
 	public abstract boolean handleMessage(ChannelHandlerContext ctx, int length, ByteBuf in);
@@ -15,17 +15,32 @@
  */
 package github.koukobin.ermis.server.main.java.server.codec;
 
+import java.nio.ByteBuffer;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
 import com.google.common.base.Throwables;
 
+import github.koukobin.ermis.common.message_types.ClientCommandResultType;
+import github.koukobin.ermis.common.message_types.ServerMessageType;
+import github.koukobin.ermis.common.util.CompressionDetector;
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.concurrent.FastThreadLocal;
 
 /**
+ * Prefixes every outbound payload with its length and compresses it using zstd
+ * if it is large enough.
+ * 
+ * Compression happens directly between direct buffers - without copying the
+ * payload into any intermediate arrays - using a compression context reused by
+ * each event loop.
+ * 
  * @author Ilias Koukovinis
  *
  */
@@ -33,34 +48,168 @@ public final class Encoder extends MessageToByteEncoder<ByteBuf> {
 	
 	private static final Logger logger = LogManager.getLogger("server");
 	
-    private static final int compressionLevel = 4; // 1 (fastest) to 22 (highest compression)
+	private static final FastThreadLocal<ZstdCompressCtx> compressCtx = new FastThreadLocal<>() {
+		
+		@Override
+		protected ZstdCompressCtx initialValue() {
+			return new ZstdCompressCtx();
+		}
+		
+		@Override
+		protected void onRemoval(ZstdCompressCtx ctx) {
+			ctx.close();
+		}
+	};
 
+	@Override
+	protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, ByteBuf msg, boolean preferDirect) {
+		int readableBytes = msg.readableBytes();
+		
+		if (readableBytes < ServerSettings.Compression.MIN_THRESHOLD_BYTES) {
+			return ctx.alloc().ioBuffer(Integer.BYTES + readableBytes);
+		}
+		
+		// Compressing requires a direct buffer
+		return ctx.alloc().directBuffer(Integer.BYTES + (int) Zstd.compressBound(readableBytes));
+	}
+	
 	@Override
 	protected void encode(ChannelHandlerContext ctx, ByteBuf msg, ByteBuf out) throws Exception {
 		int readableBytes = msg.readableBytes();
 
-		if (readableBytes < 262144 /* 256 KB */) {
+		if (readableBytes < ServerSettings.Compression.MIN_THRESHOLD_BYTES || !shouldCompress(msg)) {
 			out.writeInt(readableBytes);
 			out.writeBytes(msg);
 			return;
 		}
 
-		byte[] inputData = new byte[readableBytes];
-        msg.readBytes(inputData);
+		ServerMessageType messageType = getMessageType(msg);
+		int level = messageType == null ? ServerSettings.Compression.DEFAULT_LEVEL : ServerSettings.Compression.getLevel(messageType);
 
-        byte[] compressedData = compress(inputData);
+		int compressedLength = compress(ctx, msg, out, level);
 
-        out.writeInt(compressedData.length);
-        out.writeBytes(compressedData);
+		// Send payload uncompressed if compression failed or did not pay off
+		if (compressedLength == -1 || compressedLength >= readableBytes) {
+			out.writeInt(readableBytes);
+			out.writeBytes(msg);
+			return;
+		}
+
+		out.writeInt(compressedLength);
+		out.writerIndex(out.writerIndex() + compressedLength);
+		msg.skipBytes(readableBytes);
 	}
 	
-	private static byte[] compress(byte[] data) {
-	    try {
-	        return Zstd.compress(data, compressionLevel);
-	    } catch (Exception e) {
-	    	logger.debug(Throwables.getStackTraceAsString(e));
-	    }
-		return data;
+	/**
+	 * Compresses msg into out, right after the space reserved for the length
+	 * prefix, without modifying the indexes of either.
+	 * 
+	 * @return the length of the compressed data or -1 if compression failed
+	 */
+	private static int compress(ChannelHandlerContext ctx, ByteBuf msg, ByteBuf out, int level) {
+		
+		int readableBytes = msg.readableBytes();
+		int maxCompressedLength = (int) Zstd.compressBound(readableBytes);
+		
+		out.ensureWritable(Integer.BYTES + maxCompressedLength);
+		
+		// Payloads are typically created with ioBuffer() and are thus direct already;
+		// those that aren't have to be copied once
+		ByteBuf src = msg;
+		if (!msg.isDirect() || msg.nioBufferCount() != 1) {
+			src = ctx.alloc().directBuffer(readableBytes);
+			src.writeBytes(msg, msg.readerIndex(), readableBytes);
+		}
+		
+		try {
+			ByteBuffer srcBuffer = src.nioBuffer(src.readerIndex(), readableBytes);
+			ByteBuffer dstBuffer = out.nioBuffer(out.writerIndex() + Integer.BYTES, maxCompressedLength);
+			
+			ZstdCompressCtx zstdCtx = compressCtx.get();
+			zstdCtx.setLevel(level);
+			
+			return zstdCtx.compressDirectByteBuffer(
+					dstBuffer, dstBuffer.position(), maxCompressedLength, 
+					srcBuffer, srcBuffer.position(), readableBytes);
+		} catch (Exception e) {
+			logger.debug(Throwables.getStackTraceAsString(e));
+			return -1;
+		} finally {
+			if (src != msg) {
+				src.release();
+			}
+		}
+	}
+	
+	private static boolean shouldCompress(ByteBuf msg) {
+		ServerMessageType messageType = getMessageType(msg);
+		
+		int thresholdBytes = messageType == null ? ServerSettings.Compression.DEFAULT_THRESHOLD_BYTES : ServerSettings.Compression.getThresholdBytes(messageType);
+		if (msg.readableBytes() < thresholdBytes) {
+			return false;
+		}
+		
+		int contentIndex = getFileContentIndex(msg, messageType);
+		return contentIndex == -1 || !CompressionDetector.isAlreadyCompressed(msg, contentIndex);
+	}
+	
+	/**
+	 * @return the message type of the payload or null if it doesn't begin with one
+	 *         (As is the case during entry)
+	 */
+	private static ServerMessageType getMessageType(ByteBuf msg) {
+		if (msg.readableBytes() < Integer.BYTES) {
+			return null;
+		}
+		
+		try {
+			return ServerMessageType.fromId(msg.getInt(msg.readerIndex()));
+		} catch (IllegalArgumentException iae) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the absolute index of the file contained in the payload or -1 if the
+	 *         payload does not contain one
+	 */
+	private static int getFileContentIndex(ByteBuf msg, ServerMessageType messageType) {
+		
+		if (messageType != ServerMessageType.COMMAND_RESULT) {
+			return -1;
+		}
+		
+		int index = msg.readerIndex() + Integer.BYTES;
+		
+		ClientCommandResultType resultType;
+		try {
+			resultType = ClientCommandResultType.fromId(msg.getInt(index));
+		} catch (IllegalArgumentException iae) {
+			return -1;
+		}
+		
+		index += Integer.BYTES;
+		
+		switch (resultType) {
+		case DOWNLOAD_FILE -> {
+			int fileNameLength = msg.getInt(index);
+			return index + Integer.BYTES + fileNameLength;
+		}
+		case DOWNLOAD_IMAGE -> {
+			index += Integer.BYTES; // Message ID
+			int fileNameLength = msg.getInt(index);
+			return index + Integer.BYTES + fileNameLength;
+		}
+		case FETCH_ACCOUNT_ICON -> {
+			return index;
+		}
+		case FETCH_THUMBNAIL -> {
+			return index + Integer.BYTES /* Message ID */ + Integer.BYTES /* Dimension */;
+		}
+		default -> {
+			return -1;
+		}
+		}
 	}
 	
     @Override
@@ -0,0 +1,108 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server.codec;
+
+import github.koukobin.ermis.common.message_types.ServerMessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * Turns the chunks of a file into complete {@link ServerMessageType#FILE_DOWNLOAD_CHUNK}
+ * frames.
+ *
+ * Since the {@link ChunkedWriteHandler} sits below the {@link Encoder}, the
+ * chunks produced here bypass it; hence they are framed here instead and are
+ * never compressed - which is anyway pointless for most files.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class FileDownloadChunkedInput implements ChunkedInput<ByteBuf> {
+
+	private static final int HEADER_LENGTH = Integer.BYTES /* frame length */
+			+ Integer.BYTES /* message type */
+			+ Integer.BYTES /* message id */
+			+ Long.BYTES /* offset */;
+
+	private final ChunkedInput<ByteBuf> file;
+	private final int messageID;
+	private long offset;
+
+	/**
+	 * @param file      the part of the file to be sent
+	 * @param messageID the id of the message the file belongs to
+	 * @param offset    the offset within the file the first chunk starts from
+	 */
+	public FileDownloadChunkedInput(ChunkedInput<ByteBuf> file, int messageID, long offset) {
+		this.file = file;
+		this.messageID = messageID;
+		this.offset = offset;
+	}
+
+	@Override
+	public boolean isEndOfInput() throws Exception {
+		return file.isEndOfInput();
+	}
+
+	@Override
+	public void close() throws Exception {
+		file.close();
+	}
+
+	@Deprecated
+	@Override
+	public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+		return readChunk(ctx.alloc());
+	}
+
+	@Override
+	public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+
+		ByteBuf chunk = file.readChunk(allocator);
+
+		if (chunk == null) {
+			return null;
+		}
+
+		int chunkLength = chunk.readableBytes();
+
+		ByteBuf header = allocator.ioBuffer(HEADER_LENGTH);
+		header.writeInt(HEADER_LENGTH - Integer.BYTES + chunkLength);
+		header.writeInt(ServerMessageType.FILE_DOWNLOAD_CHUNK.id);
+		header.writeInt(messageID);
+		header.writeLong(offset);
+
+		offset += chunkLength;
+
+		CompositeByteBuf frame = allocator.compositeDirectBuffer(2);
+		frame.addComponents(true, header, chunk);
+		return frame;
+	}
+
+	@Override
+	public long length() {
+		return file.length();
+	}
+
+	@Override
+	public long progress() {
+		return file.progress();
+	}
+}
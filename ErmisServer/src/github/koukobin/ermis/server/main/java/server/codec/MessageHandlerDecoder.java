@@ -15,10 +15,13 @@
  */
 package github.koukobin.ermis.server.main.java.server.codec;
 
+import java.nio.ByteBuffer;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDecompressCtx;
 import com.google.common.base.Throwables;
 
 import github.koukobin.ermis.common.message_types.ClientCommandType;
@@ -27,6 +30,7 @@ import github.koukobin.ermis.common.message_types.ContentType;
 import github.koukobin.ermis.common.util.CompressionDetector;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.FastThreadLocal;
 
 /**
  * @author Ilias Koukovinis
@@ -36,40 +40,112 @@ public class MessageHandlerDecoder extends Decoder {
 
 	private static final Logger logger = LogManager.getLogger("server");
 	
+	private static final FastThreadLocal<ZstdDecompressCtx> decompressCtx = new FastThreadLocal<>() {
+		
+		@Override
+		protected ZstdDecompressCtx initialValue() {
+			return new ZstdDecompressCtx();
+		}
+		
+		@Override
+		protected void onRemoval(ZstdDecompressCtx ctx) {
+			ctx.close();
+		}
+	};
+	
 	private final int maxMessageTextLength;
 	private final int maxMessageFileLength;
+	private final int maxFileUploadChunkLength;
+	private final int maxDecompressedLength;
 	
-	public MessageHandlerDecoder(int maxMessageTextLength, int maxMessageFileLength) {
+	public MessageHandlerDecoder(int maxMessageTextLength, int maxMessageFileLength, int maxFileUploadChunkLength) {
+		super(Math.max(Math.max(maxMessageTextLength, maxMessageFileLength), maxFileUploadChunkLength));
+		this.maxDecompressedLength = Math.max(Math.max(maxMessageTextLength, maxMessageFileLength), maxFileUploadChunkLength);
+		this.maxFileUploadChunkLength = maxFileUploadChunkLength;
 		this.maxMessageTextLength = maxMessageTextLength;
 		this.maxMessageFileLength = maxMessageFileLength;
 	}
 
-	private static ByteBuf decompress(ChannelHandlerContext ctx, ByteBuf in) {
-        int compressedLength = in.readInt();
-        byte[] compressedData = new byte[compressedLength];
-        in.readBytes(compressedData);
+	@Override
+	protected ByteBuf decodeFrame(ChannelHandlerContext ctx, ByteBuf frame) {
+		
+		if (!CompressionDetector.isZstdCompressed(frame)) {
+			return frame;
+		}
+		
+		try {
+			return decompress(ctx, frame);
+		} finally {
+			frame.release();
+		}
+	}
+	
+	/**
+	 * Decompresses frame into a pooled direct buffer in one go.
+	 * 
+	 * @return the decompressed frame or null if decompression failed
+	 */
+	private ByteBuf decompress(ChannelHandlerContext ctx, ByteBuf frame) {
+		
+		int compressedLength = frame.readableBytes();
+
+		// Frame has to reside in a single direct buffer, which is the case unless it
+		// was accumulated in a composite buffer
+		ByteBuf src = frame;
+		if (!frame.isDirect() || frame.nioBufferCount() != 1) {
+			src = ctx.alloc().directBuffer(compressedLength);
+			src.writeBytes(frame, frame.readerIndex(), compressedLength);
+		}
+		
+		ByteBuf decompressed = null;
+		try {
+			ByteBuffer srcBuffer = src.nioBuffer(src.readerIndex(), compressedLength);
+
+			// Relies on the content size stored in the frame's header, which is always
+			// present when compressing in a single pass
+			long decompressedLength = Zstd.decompressedDirectByteBufferSize(srcBuffer, srcBuffer.position(), compressedLength);
 
-        try {
-            return ctx.alloc().ioBuffer()
-					.writeBytes(Zstd.decompress(compressedData, (int) Zstd.decompressedSize(compressedData)));
+			if (decompressedLength <= 0) {
+				createErrorResponse(ctx, "Decompression failed");
+				return null;
+			}
+
+			// Guard against decompression bombs
+			if (decompressedLength > maxDecompressedLength) {
+				sendMessageExceedsMaximumMessageLength(ctx, maxDecompressedLength);
+				return null;
+			}
+
+			decompressed = ctx.alloc().directBuffer((int) decompressedLength);
+			ByteBuffer dstBuffer = decompressed.nioBuffer(0, (int) decompressedLength);
+
+			int actualDecompressedLength = decompressCtx.get().decompressDirectByteBuffer(
+					dstBuffer, dstBuffer.position(), (int) decompressedLength,
+					srcBuffer, srcBuffer.position(), compressedLength);
+
+			if (actualDecompressedLength != decompressedLength) {
+				createErrorResponse(ctx, "Decompression failed");
+				decompressed.release();
+				return null;
+			}
+
+			return decompressed.writerIndex(actualDecompressedLength);
 		} catch (Exception e) {
 			logger.debug(Throwables.getStackTraceAsString(e));
 			createErrorResponse(ctx, "Decompression failed");
-			return null; // Indicate failure by returning null
+			if (decompressed != null) {
+				decompressed.release();
+			}
+			return null;
+		} finally {
+			if (src != frame) {
+				src.release();
+			}
 		}
 	}
-	
 
 	@Override
-	public boolean handleMessage(ChannelHandlerContext ctx, int length, ByteBuf in) {
-		ByteBuf data = in;
-
-		if (CompressionDetector.isZstdCompressed(data)) {
-			data = decompress(ctx, in);
-			if (data == null) {
-				return false; // Decompression failed, terminate the method early
-			}
-		}
+	public boolean handleMessage(ChannelHandlerContext ctx, int length, ByteBuf data) {
 
 		ClientMessageType messageType;
 		try {
@@ -96,7 +172,7 @@ public class MessageHandlerDecoder extends Decoder {
 
 	private int determineMaxLength(ChannelHandlerContext ctx, ByteBuf data, ClientMessageType messageType) {
 		switch (messageType) {
-		case CLIENT_CONTENT:
+		case CLIENT_CONTENT, CLIENT_CONTENT_BY_ID:
 			ContentType contentType;
 			try {
 				contentType = ContentType.fromId(data.readInt());
@@ -106,8 +182,10 @@ public class MessageHandlerDecoder extends Decoder {
 				return -1;
 			}
 			return getMaxLengthForContentType(ctx, contentType);
-		case COMMAND:
+		case COMMAND, COMMAND_BY_ID:
 			return getMaxLengthForCommand(ctx, data);
+		case FILE_UPLOAD, FILE_UPLOAD_BY_ID:
+			return maxFileUploadChunkLength;
 		default:
 			logger.debug("Message type not implemented!");
 			createErrorResponse(ctx, "Message type not implemented!");
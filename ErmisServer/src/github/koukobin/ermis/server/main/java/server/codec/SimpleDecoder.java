@@ -27,6 +27,7 @@ public class SimpleDecoder extends Decoder {
 	private final int maxLength;
 
 	public SimpleDecoder(int maxLength) {
+		super(maxLength);
 		this.maxLength = maxLength;
 	}
 
@@ -0,0 +1,161 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server.file_uploads;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import github.koukobin.ermis.common.message_types.ContentType;
+import github.koukobin.ermis.server.main.java.storage.AttachmentStore;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A file being uploaded in chunks. Chunks are written straight to a temporary
+ * file, so that memory used does not depend on the size of the file, and are
+ * hashed as they arrive so that the file can be moved into the
+ * {@link AttachmentStore} without being read again.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class FileUpload {
+
+	private final int uploadID;
+	private final int clientID;
+	private final int chatSessionID;
+	private final ContentType contentType;
+	private final byte[] fileName;
+	private final long fileSize;
+
+	private final Path tempFile;
+	private final FileChannel fileChannel;
+	private final MessageDigest digest;
+
+	private long bytesReceived;
+	private volatile long lastActivityMillis;
+
+	FileUpload(int uploadID, int clientID, int chatSessionID, ContentType contentType, byte[] fileName, long fileSize, Path tempFile) throws IOException {
+		this.uploadID = uploadID;
+		this.clientID = clientID;
+		this.chatSessionID = chatSessionID;
+		this.contentType = contentType;
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+		this.tempFile = tempFile;
+		this.fileChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		this.digest = AttachmentStore.newDigest();
+		this.bytesReceived = 0;
+		this.lastActivityMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Appends chunk to the file.
+	 *
+	 * @param offset the offset of the chunk within the file; must equal the bytes
+	 *               received so far
+	 * @return false if the chunk does not continue from where the last one ended
+	 *         or exceeds the size declared
+	 */
+	public synchronized boolean write(long offset, ByteBuf chunk) throws IOException {
+
+		lastActivityMillis = System.currentTimeMillis();
+
+		int length = chunk.readableBytes();
+
+		if (offset != bytesReceived || bytesReceived + length > fileSize) {
+			return false;
+		}
+
+		digest.update(chunk.nioBuffer());
+
+		while (chunk.isReadable()) {
+			chunk.readBytes(fileChannel, bytesReceived + (length - chunk.readableBytes()), chunk.readableBytes());
+		}
+
+		bytesReceived += length;
+		return true;
+	}
+
+	/**
+	 * Closes the temporary file for writing.
+	 *
+	 * @return false if not every byte of the file has been received
+	 */
+	public synchronized boolean complete() throws IOException {
+
+		if (bytesReceived != fileSize) {
+			return false;
+		}
+
+		fileChannel.force(false);
+		fileChannel.close();
+		return true;
+	}
+
+	/**
+	 * Must only be called after the upload has been {@link #complete()}d.
+	 *
+	 * @return the SHA-256 digest of the file
+	 */
+	public synchronized byte[] getDigest() {
+		return digest.digest();
+	}
+
+	synchronized void delete() throws IOException {
+		fileChannel.close();
+		Files.deleteIfExists(tempFile);
+	}
+
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	long getLastActivityMillis() {
+		return lastActivityMillis;
+	}
+
+	public int getUploadID() {
+		return uploadID;
+	}
+
+	public int getClientID() {
+		return clientID;
+	}
+
+	public int getChatSessionID() {
+		return chatSessionID;
+	}
+
+	public ContentType getContentType() {
+		return contentType;
+	}
+
+	public byte[] getFileName() {
+		return fileName.clone();
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public Path getTempFile() {
+		return tempFile;
+	}
+}
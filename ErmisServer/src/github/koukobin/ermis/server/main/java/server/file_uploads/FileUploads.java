@@ -0,0 +1,167 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server.file_uploads;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Throwables;
+
+import github.koukobin.ermis.common.message_types.ContentType;
+import github.koukobin.ermis.server.main.java.configs.ConfigurationsPaths;
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import github.koukobin.ermis.server.main.java.util.SecureRandomGenerator;
+
+/**
+ * Keeps track of pending file uploads and discards those left idle.
+ *
+ * Uploads are not bound to a connection, so that a client can resume an upload
+ * after reconnecting; they are however bound to the client that began them.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class FileUploads {
+
+	private static final Logger logger = LogManager.getLogger("server");
+
+	private static final Path PENDING_UPLOADS_FOLDER = Path.of(ConfigurationsPaths.Storage.PENDING_UPLOADS_FOLDER_PATH);
+
+	private static final Map<Integer, FileUpload> uploadIDSToUploads = new ConcurrentHashMap<>();
+	private static final Map<Integer, Integer> clientIDSToPendingUploads = new ConcurrentHashMap<>();
+
+	private static final ScheduledExecutorService idleUploadsReaper = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+		Thread thread = new Thread(r, "Thread-IdleUploadsReaper");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		try {
+			Files.createDirectories(PENDING_UPLOADS_FOLDER);
+
+			// Uploads do not survive restarts
+			try (Stream<Path> leftovers = Files.list(PENDING_UPLOADS_FOLDER)) {
+				for (Iterator<Path> it = leftovers.iterator(); it.hasNext();) {
+					Files.deleteIfExists(it.next());
+				}
+			}
+		} catch (IOException ioe) {
+			logger.fatal(Throwables.getStackTraceAsString(ioe));
+			throw new RuntimeException(ioe);
+		}
+
+		long period = Math.max(1, ServerSettings.FILE_UPLOAD_IDLE_TIMEOUT_SECONDS / 4);
+		idleUploadsReaper.scheduleAtFixedRate(FileUploads::discardIdleUploads, period, period, TimeUnit.SECONDS);
+	}
+
+	private FileUploads() {}
+
+	/**
+	 * @return the upload or null if the client already has as many pending
+	 *         uploads as allowed
+	 */
+	public static FileUpload begin(int clientID, int chatSessionID, ContentType contentType, byte[] fileName, long fileSize) throws IOException {
+
+		// Each pending upload holds a file open and reserves disk space until it is
+		// completed, aborted or discarded as idle
+		int pendingUploads = clientIDSToPendingUploads.merge(clientID, 1, Integer::sum);
+		if (pendingUploads > ServerSettings.MAX_PENDING_FILE_UPLOADS_PER_CLIENT) {
+			releasePendingUpload(clientID);
+			return null;
+		}
+
+		try {
+			while (true) {
+				int uploadID = SecureRandomGenerator.generateRandomNumber(9);
+
+				if (uploadIDSToUploads.containsKey(uploadID)) {
+					continue;
+				}
+
+				Path tempFile = PENDING_UPLOADS_FOLDER.resolve(Integer.toString(uploadID));
+				FileUpload upload = new FileUpload(uploadID, clientID, chatSessionID, contentType, fileName, fileSize, tempFile);
+
+				if (uploadIDSToUploads.putIfAbsent(uploadID, upload) == null) {
+					return upload;
+				}
+
+				upload.delete();
+			}
+		} catch (IOException ioe) {
+			releasePendingUpload(clientID);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * @return the upload or null if there is no such upload belonging to the
+	 *         client
+	 */
+	public static FileUpload get(int uploadID, int clientID) {
+
+		FileUpload upload = uploadIDSToUploads.get(uploadID);
+
+		if (upload == null || upload.getClientID() != clientID) {
+			return null;
+		}
+
+		return upload;
+	}
+
+	/**
+	 * Removes upload and deletes its temporary file
+	 */
+	public static void discard(FileUpload upload) {
+
+		if (uploadIDSToUploads.remove(upload.getUploadID(), upload)) {
+			releasePendingUpload(upload.getClientID());
+		}
+
+		try {
+			upload.delete();
+		} catch (IOException ioe) {
+			logger.error(Throwables.getStackTraceAsString(ioe));
+		}
+	}
+
+	private static void releasePendingUpload(int clientID) {
+		clientIDSToPendingUploads.computeIfPresent(clientID, (Integer id, Integer pendingUploads) -> pendingUploads == 1 ? null : pendingUploads - 1);
+	}
+
+	private static void discardIdleUploads() {
+
+		long idleSinceMillis = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ServerSettings.FILE_UPLOAD_IDLE_TIMEOUT_SECONDS);
+
+		for (FileUpload upload : uploadIDSToUploads.values()) {
+			if (upload.getLastActivityMillis() < idleSinceMillis) {
+				logger.debug("Discarding idle upload {}", upload.getUploadID());
+				discard(upload);
+			}
+		}
+	}
+}
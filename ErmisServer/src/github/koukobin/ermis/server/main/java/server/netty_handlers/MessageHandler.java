@@ -15,17 +15,24 @@
  */
 package github.koukobin.ermis.server.main.java.server.netty_handlers;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
+import com.google.common.base.Throwables;
 import com.google.common.primitives.Ints;
 
 import github.koukobin.ermis.common.LoadedInMemoryFile;
@@ -34,22 +41,43 @@ import github.koukobin.ermis.common.message_types.ClientCommandResultType;
 import github.koukobin.ermis.common.message_types.ClientCommandType;
 import github.koukobin.ermis.common.message_types.ClientMessageType;
 import github.koukobin.ermis.common.message_types.ContentType;
+import github.koukobin.ermis.common.message_types.FileUploadAction;
 import github.koukobin.ermis.common.message_types.Message;
 import github.koukobin.ermis.common.message_types.ServerMessageType;
 import github.koukobin.ermis.common.results.ResultHolder;
+import github.koukobin.ermis.common.util.EmptyArrays;
 import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.ChatMessagesWriter;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.ErmisDatabase;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.DatabaseChatMessage;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.UserIcon;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.UserProfile;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.UserProfileCache;
 import github.koukobin.ermis.server.main.java.server.ActiveChatSessions;
+import github.koukobin.ermis.server.main.java.server.ActiveClients;
 import github.koukobin.ermis.server.main.java.server.ChatSession;
 import github.koukobin.ermis.server.main.java.server.ClientInfo;
+import github.koukobin.ermis.server.main.java.server.EncodedHistoryPages;
+import github.koukobin.ermis.server.main.java.server.RecentMessages;
+import github.koukobin.ermis.server.main.java.server.codec.FileDownloadChunkedInput;
 import github.koukobin.ermis.server.main.java.server.codec.MessageHandlerDecoder;
+import github.koukobin.ermis.server.main.java.server.file_uploads.FileUpload;
+import github.koukobin.ermis.server.main.java.server.file_uploads.FileUploads;
+import github.koukobin.ermis.server.main.java.server.util.BlockingWorkExecutor;
+import github.koukobin.ermis.server.main.java.server.util.ChannelFanOut;
 import github.koukobin.ermis.server.main.java.server.util.MessageByteBufCreator;
+import github.koukobin.ermis.server.main.java.storage.AttachmentStore;
+import github.koukobin.ermis.server.main.java.storage.StoredFile;
+import github.koukobin.ermis.server.main.java.storage.Thumbnails;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.handler.stream.ChunkedStream;
 
 /**
  * @author Ilias Koukovinis
@@ -57,10 +85,8 @@ import io.netty.channel.epoll.EpollSocketChannel;
  */
 final class MessageHandler extends ParentHandler {
 	
-	private static final Map<Integer, List<ClientInfo>> clientIDSToActiveClients = new ConcurrentHashMap<>(ServerSettings.SERVER_BACKLOG);
-
-	private CompletableFuture<?> commandsToBeExecutedQueue = 
-			CompletableFuture.runAsync(() -> {}); // initialize it like this for thenRunAsync to work
+	private static final String CHAT_SESSION_NOT_FOUND = "Chat session selected doesn't exist. (May have been deleted by the other user)";
+	private static final String SERVER_TOO_BUSY = "Server is too busy to process your message. Please try again later.";
 	
 	public MessageHandler(ClientInfo clientInfo) {
 		super(clientInfo);
@@ -69,21 +95,39 @@ final class MessageHandler extends ParentHandler {
 	@Override
 	public void handlerAdded(ChannelHandlerContext ctx) {
 		
-		MessageHandlerDecoder decoder = new MessageHandlerDecoder(ServerSettings.MAX_CLIENT_MESSAGE_TEXT_BYTES, ServerSettings.MAX_CLIENT_MESSAGE_FILE_BYTES);
+		MessageHandlerDecoder decoder = new MessageHandlerDecoder(
+				ServerSettings.MAX_CLIENT_MESSAGE_TEXT_BYTES,
+				ServerSettings.MAX_CLIENT_MESSAGE_FILE_BYTES,
+				ServerSettings.MAX_FILE_UPLOAD_CHUNK_BYTES);
 		ctx.pipeline().replace("decoder", "decoder", decoder);
 		
+		// Executed before any message of the client is processed
+		BlockingWorkExecutor.execute(ctx.channel(), this::loadClientInfo);
+	}
+	
+	private void loadClientInfo() {
+		
 		try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
 			
 			int clientID = conn.getClientID(clientInfo.getChannel().remoteAddress().getAddress());
 			
-			clientInfo.setUsername(conn.getUsername(clientID));
-			clientInfo.setEmail(conn.getEmailAddress(clientID));
+			UserProfile profile = UserProfileCache.get(clientID, conn);
+			
+			// Account deleted meanwhile or its profile could not be read
+			if (profile == null) {
+				logger.error("Failed to load profile of client {}", clientID);
+				MessageByteBufCreator.sendMessageInfo(clientInfo.getChannel(), "An error occured while trying to load your account. Please try again later.");
+				clientInfo.getChannel().close();
+				return;
+			}
+			
+			clientInfo.setUsername(profile.displayName());
+			clientInfo.setEmail(profile.email());
 			clientInfo.setClientID(clientID);
 
 			Integer[] chatSessionsIDS = conn.getChatSessionsUserBelongsTo(clientID);
 
 			List<ChatSession> chatSessions = new ArrayList<>(chatSessionsIDS.length);
-			clientInfo.setChatSessions(chatSessions);
 			for (int i = 0; i < chatSessionsIDS.length; i++) {
 
 				int chatSessionID = chatSessionsIDS[i];
@@ -92,27 +136,20 @@ final class MessageHandler extends ParentHandler {
 
 				if (chatSession == null) {
 
-					List<Integer> membersList;
-
-					{
-						Integer[] members = conn.getMembersOfChatSession(chatSessionID);
-						membersList = new ArrayList<>(members.length);
-						Collections.addAll(membersList, members);
-					}
-
 					// The client will become active in the chat session once he calls
 					// GET_CHAT_SESSIONS command. The reason that this happens is because if he
 					// hadn't gotten the chat session with FETCH_CHAT_SESSIONS command then if
 					// there was a message sent in the chat session, the server would send that to
 					// the client but the client would not know how to proccess it and in what chat
 					// session the message belongs to
-					List<Channel> activeMembersList = new ArrayList<>(membersList.size());
-					chatSession = new ChatSession(chatSessionID, activeMembersList, membersList);
-					ActiveChatSessions.addChatSession(chatSessionID, chatSession);
+					chatSession = new ChatSession(chatSessionID, Arrays.asList(conn.getMembersOfChatSession(chatSessionID)));
+					chatSession = ActiveChatSessions.addChatSession(chatSession);
 				}
 
 				chatSessions.add(chatSession);
 			}
+			
+			clientInfo.setChatSessions(chatSessions);
 
 			Integer[] chatRequests = conn.getChatRequests(clientID);
 			List<Integer> chatRequestsList = new ArrayList<>(chatRequests.length);
@@ -121,28 +158,21 @@ final class MessageHandler extends ParentHandler {
 			clientInfo.setChatRequests(chatRequestsList);
 		}
 
-		clientIDSToActiveClients.putIfAbsent(clientInfo.getClientID(), new ArrayList<>());
-		clientIDSToActiveClients.get(clientInfo.getClientID()).add(clientInfo);
+		ActiveClients.addDevice(clientInfo);
 	}
 
 	@Override
-	public void handlerRemoved(ChannelHandlerContext ctx) throws IOException {
-		clientIDSToActiveClients.remove(clientInfo.getClientID());
-		
-		List<ChatSession> userChatSessions = clientInfo.getChatSessions();
-		for (int i = 0; i < userChatSessions.size(); i++) {
-			
-			ChatSession chatSession = userChatSessions.get(i);
-			chatSession.getActiveChannels().remove(clientInfo.getChannel());
-
-			if (chatSession.getActiveChannels().isEmpty()) {
-				ActiveChatSessions.removeChatSession(chatSession.getChatSessionID());
-			} else {
-				refreshChatSession(chatSession);
-			}
-			
+	public void handlerRemoved(ChannelHandlerContext ctx) {
+		// Ensure client is not removed before he has even been loaded
+		BlockingWorkExecutor.execute(ctx.channel(), this::unloadClientInfo);
+	}
+	
+	private void unloadClientInfo() {
+		for (ChatSession chatSession : clientInfo.getChatSessions()) {
+			ActiveChatSessions.removeMember(chatSession, clientInfo.getChannel());
 		}
 		
+		ActiveClients.removeDevice(clientInfo);
 	}
 
 	@Override
@@ -151,180 +181,324 @@ final class MessageHandler extends ParentHandler {
 		ClientMessageType msgType = ClientMessageType.fromId(msg.readInt());
 
 		switch (msgType) {
-		case CLIENT_CONTENT -> {
+		case CLIENT_CONTENT, CLIENT_CONTENT_BY_ID -> {
 
-			ChatSession chatSession;
-			
 			ContentType contentType = ContentType.fromId(msg.readInt());
 			
-			try {
-				int indexOfChatSession = msg.readInt();
-				chatSession = clientInfo.getChatSessions().get(indexOfChatSession);
-			} catch (IndexOutOfBoundsException ioobe) {
-				ByteBuf payload = ctx.alloc().ioBuffer();
-				payload.writeInt(ServerMessageType.SERVER_MESSAGE_INFO.id);
-				payload.writeBytes("Chat session selected doesn't exist. (May have been deleted by the other user)".getBytes());
-				ctx.channel().writeAndFlush(payload);
+			ChatSession chatSession = readChatSession(clientInfo, msg, msgType.addressesChatSessionsByID());
+			if (chatSession == null) {
 				return;
 			}
 
-			int chatSessionID = chatSession.getChatSessionID();
-			byte[] usernameBytes = clientInfo.getUsername().getBytes();
+			// Room is reserved before the message's file is stored, so that it is not
+			// left behind unreferenced because the message was rejected
+			if (!ChatMessagesWriter.reserve()) {
+				MessageByteBufCreator.sendMessageInfo(ctx, SERVER_TOO_BUSY);
+				return;
+			}
+			
+			DatabaseChatMessage chatMessage = new DatabaseChatMessage();
+			chatMessage.setClientID(clientInfo.getClientID());
+			chatMessage.setChatSessionID(chatSession.getChatSessionID());
+			chatMessage.setContentType(contentType);
+			
+			try {
+				switch (contentType) {
+				case TEXT -> {
+					byte[] textBytes = new byte[msg.readInt()];
+					msg.readBytes(textBytes);
+					chatMessage.setText(textBytes);
+				}
+				case FILE, IMAGE -> {
+					byte[] fileNameBytes = new byte[msg.readInt()];
+					msg.readBytes(fileNameBytes);
+					chatMessage.setFileName(fileNameBytes);
+					
+					byte[] fileBytes = new byte[msg.readableBytes()];
+					msg.readBytes(fileBytes);
+					chatMessage.setAttachmentHash(AttachmentStore.store(fileBytes));
+				}
+				}
+			} catch (IOException | RuntimeException e) {
+				ChatMessagesWriter.cancelReservation();
+				throw e;
+			}
+			
+			sendChatMessage(ctx, chatMessage, chatSession);
+		}
+		case COMMAND, COMMAND_BY_ID -> {
+			
+			ClientCommandType commandType = ClientCommandType.fromId(msg.readInt());
+			executeCommand(commandType, msg, msgType.addressesChatSessionsByID());
+		}
+		case FILE_UPLOAD, FILE_UPLOAD_BY_ID -> handleFileUpload(ctx, msg, msgType.addressesChatSessionsByID());
+		}
+	}
+	
+	/**
+	 * Queues message - for which room has been reserved through
+	 * {@link ChatMessagesWriter#reserve()} - for persistence, broadcasts it to the
+	 * other members of the chat session and acknowledges the sender according to
+	 * {@link ChatMessagesWriter#ACK_MODE}.
+	 * 
+	 * The message's file, if any, is released once the message has been
+	 * persisted; or deleted, unless referenced otherwise, if it is not.
+	 * 
+	 * @return whether the message was accepted
+	 */
+	private boolean sendChatMessage(ChannelHandlerContext ctx, DatabaseChatMessage chatMessage, ChatSession chatSession) {
 
-			byte[] textBytes = null;
+		CompletableFuture<Boolean> persisted = ChatMessagesWriter.enqueueReserved(chatMessage);
 
-			byte[] fileNameBytes = null;
-			byte[] fileBytes = null;
-					
-			ByteBuf payload = ctx.alloc().ioBuffer();
-			payload.writeInt(ServerMessageType.CLIENT_CONTENT.id);
-			payload.writeInt(contentType.id);
+		String attachmentHash = chatMessage.getAttachmentHash();
 
-			payload.writeLong(System.currentTimeMillis());
-			
-			switch (contentType) {
-			case TEXT -> {
-				
-				int textLength = msg.readInt();
-				textBytes = new byte[textLength];
-				msg.readBytes(textBytes);
-				
-				payload.writeInt(textLength);
-				payload.writeBytes(textBytes);
+		if (persisted == null) {
+			if (attachmentHash != null) {
+				releaseAttachment(attachmentHash, false);
 			}
-			case FILE, IMAGE -> {
-				
-				int fileNameLength = msg.readInt();
-				fileNameBytes = new byte[fileNameLength];
-				msg.readBytes(fileNameBytes);
-				
-				fileBytes = new byte[msg.readableBytes()];
-				msg.readBytes(fileBytes);
 
-				payload.writeInt(fileNameLength);
-				payload.writeBytes(fileNameBytes);
-			}
+			MessageByteBufCreator.sendMessageInfo(ctx, SERVER_TOO_BUSY);
+			return false;
+		}
+
+		if (attachmentHash != null) {
+			persisted.thenAccept((Boolean isSuccessful) -> releaseAttachment(attachmentHash, isSuccessful));
+		}
+
+		int chatSessionID = chatMessage.getChatSessionID();
+		int messageID = chatMessage.getMessageID();
+		ContentType contentType = chatMessage.getContentType();
+
+		long timeWritten = System.currentTimeMillis();
+
+		if (contentType == ContentType.IMAGE) {
+			Thumbnails.generateAsync(chatMessage.getAttachmentHash());
+		}
+
+		RecentMessages.add(new Message(clientInfo.getUsername(), clientInfo.getClientID(), messageID, chatSessionID,
+				chatMessage.getText(), chatMessage.getFileName(), timeWritten, contentType));
+		persisted.thenAccept((Boolean isSuccessful) -> {
+			if (!isSuccessful) {
+				RecentMessages.remove(chatSessionID, messageID);
+				EncodedHistoryPages.invalidate(chatSessionID, messageID);
 			}
-			
-			int messageIDInDatabase = 0;
-			try (ErmisDatabase.WriteChatMessagesDBConnection conn = ErmisDatabase.getWriteChatMessagesConnection()) {
+		});
+
+		ByteBuf payload = createClientContentPayload(contentType, contentType == ContentType.TEXT ? chatMessage.getText() : chatMessage.getFileName(), messageID, chatSessionID, timeWritten);
+		broadcastMessageToChatSession(payload, chatSession);
+
+		switch (ChatMessagesWriter.ACK_MODE) {
+		case ON_ENQUEUE -> sendMessageSuccesfullySent(clientInfo.getChannel(), chatSessionID, messageID);
+		case ON_COMMIT -> {
+			EpollSocketChannel channel = clientInfo.getChannel();
+			persisted.thenAccept((Boolean isSuccessful) -> {
+				if (isSuccessful) {
+					sendMessageSuccesfullySent(channel, chatSessionID, messageID);
+				} else {
+					MessageByteBufCreator.sendMessageInfo(channel, "An error occured while trying to save your message");
+				}
+			});
+		}
+		}
+
+		return true;
+	}
 
-				DatabaseChatMessage chatMessage = new DatabaseChatMessage(
-						clientInfo.getClientID(),
-						chatSessionID,
-						textBytes,
-						fileNameBytes,
-						fileBytes,
-						contentType);
+	private static void releaseAttachment(String attachmentHash, boolean isPersisted) {
 
-				messageIDInDatabase = conn.addMessage(chatMessage);
+		AttachmentStore.release(attachmentHash);
+
+		if (!isPersisted) {
+			try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+				conn.deleteUnreferencedAttachments(List.of(attachmentHash));
 			}
+		}
+	}
+	
+	/**
+	 * Creates the payload with which a message is broadcasted to the members of a
+	 * chat session.
+	 * 
+	 * @param textOrFileName the message's text if it is of type TEXT; otherwise
+	 *                       the name of the file
+	 */
+	private ByteBuf createClientContentPayload(ContentType contentType, byte[] textOrFileName, int messageID, int chatSessionID, long timeWritten) {
+		
+		byte[] usernameBytes = clientInfo.getUsername().getBytes();
+		
+		ByteBuf payload = clientInfo.getChannel().alloc().ioBuffer();
+		payload.writeInt(ServerMessageType.CLIENT_CONTENT.id);
+		payload.writeInt(contentType.id);
 
-			payload.writeInt(usernameBytes.length);
-			payload.writeBytes(usernameBytes);
+		payload.writeLong(timeWritten);
+		
+		payload.writeInt(textOrFileName.length);
+		payload.writeBytes(textOrFileName);
+		
+		payload.writeInt(usernameBytes.length);
+		payload.writeBytes(usernameBytes);
+		
+		payload.writeInt(clientInfo.getClientID());
+		
+		payload.writeInt(messageID);
+		payload.writeInt(chatSessionID);
+		
+		return payload;
+	}
+	
+	private void handleFileUpload(ChannelHandlerContext ctx, ByteBuf msg, boolean isChatSessionAddressedByID) throws IOException {
+		
+		FileUploadAction action = FileUploadAction.fromId(msg.readInt());
+		
+		if (action == FileUploadAction.BEGIN) {
 			
-			payload.writeInt(clientInfo.getClientID());
+			ContentType contentType = ContentType.fromId(msg.readInt());
 			
-			payload.writeInt(messageIDInDatabase);
-			payload.writeInt(chatSessionID);
-
-			broadcastMessageToChatSession(payload, messageIDInDatabase, chatSession);
+			ChatSession chatSession = readChatSession(clientInfo, msg, isChatSessionAddressedByID);
+			if (chatSession == null) {
+				return;
+			}
+			
+			long fileSize = msg.readLong();
+			
+			byte[] fileNameBytes = new byte[msg.readInt()];
+			msg.readBytes(fileNameBytes);
+			
+			if (contentType == ContentType.TEXT || fileSize <= 0) {
+				MessageByteBufCreator.sendMessageInfo(ctx, "Invalid file upload");
+				return;
+			}
+			
+			if (fileSize > ServerSettings.MAX_FILE_UPLOAD_BYTES) {
+				MessageByteBufCreator.sendMessageInfo(ctx, "File size exceeds maximum size (" + ServerSettings.MAX_FILE_UPLOAD_BYTES + " bytes)");
+				return;
+			}
+			
+			FileUpload upload = FileUploads.begin(clientInfo.getClientID(), chatSession.getChatSessionID(), contentType, fileNameBytes, fileSize);
+			
+			if (upload == null) {
+				MessageByteBufCreator.sendMessageInfo(ctx, "Too many pending file uploads (complete or abort one first)");
+				return;
+			}
+			
+			sendFileUploadStatus(action, upload);
+			return;
+		}
+		
+		FileUpload upload = FileUploads.get(msg.readInt(), clientInfo.getClientID());
 		
+		if (upload == null) {
+			MessageByteBufCreator.sendMessageInfo(ctx, "File upload not found. (May have expired)");
+			return;
 		}
-		case COMMAND -> {
+		
+		switch (action) {
+		case CHUNK -> {
+			long offset = msg.readLong();
 			
-			ClientCommandType commandType = ClientCommandType.fromId(msg.readInt());
-
-			switch (commandType.getCommandLevel()) {
-			case HEAVY -> {
-				msg.retain(); // increase reference count by 1 for executeCommand
-				commandsToBeExecutedQueue.thenRunAsync(() -> {
-					try {
-						executeCommand(commandType, msg);
-					} catch (Exception e) {
-						exceptionCaught(ctx, e);
-					}
-				});
+			if (!upload.write(offset, msg)) {
+				MessageByteBufCreator.sendMessageInfo(ctx, "File upload chunk is out of order or exceeds the file's size");
 			}
-			case LIGHT -> {
-				executeCommand(commandType, msg);
+			
+			sendFileUploadStatus(action, upload);
+		}
+		case RESUME -> sendFileUploadStatus(action, upload);
+		case ABORT -> {
+			FileUploads.discard(upload);
+			sendFileUploadStatus(action, upload);
+		}
+		case COMMIT -> {
+			
+			if (!upload.complete()) {
+				MessageByteBufCreator.sendMessageInfo(ctx, "File upload is incomplete");
+				sendFileUploadStatus(FileUploadAction.RESUME, upload);
+				return;
 			}
-			default -> { /* No such case */ }
+			
+			ChatSession chatSession = clientInfo.getChatSession(upload.getChatSessionID());
+			
+			if (chatSession == null) {
+				FileUploads.discard(upload);
+				MessageByteBufCreator.sendMessageInfo(ctx, CHAT_SESSION_NOT_FOUND);
+				return;
+			}
+			
+			// The upload is kept so that it can be committed again later
+			if (!ChatMessagesWriter.reserve()) {
+				MessageByteBufCreator.sendMessageInfo(ctx, SERVER_TOO_BUSY);
+				sendFileUploadStatus(FileUploadAction.RESUME, upload);
+				return;
+			}
+			
+			DatabaseChatMessage chatMessage = new DatabaseChatMessage();
+			chatMessage.setClientID(clientInfo.getClientID());
+			chatMessage.setChatSessionID(upload.getChatSessionID());
+			chatMessage.setFileName(upload.getFileName());
+			chatMessage.setContentType(upload.getContentType());
+			
+			try {
+				chatMessage.setAttachmentHash(AttachmentStore.store(upload.getTempFile(), upload.getDigest()));
+			} catch (IOException | RuntimeException e) {
+				ChatMessagesWriter.cancelReservation();
+				throw e;
+			} finally {
+				FileUploads.discard(upload);
+			}
+			
+			if (sendChatMessage(ctx, chatMessage, chatSession)) {
+				sendFileUploadStatus(action, upload);
 			}
 		}
+		default -> { /* BEGIN is handled above */ }
 		}
 	}
 	
-	private void broadcastMessageToChatSession(ByteBuf payload, int messageID, ChatSession chatSession) {
-		broadcastMessageToChatSession(payload, messageID, chatSession, clientInfo);
+	private void sendFileUploadStatus(FileUploadAction action, FileUpload upload) {
+		ByteBuf payload = clientInfo.getChannel().alloc().ioBuffer(Integer.BYTES * 3 + Long.BYTES);
+		payload.writeInt(ServerMessageType.FILE_UPLOAD_STATUS.id);
+		payload.writeInt(action.id);
+		payload.writeInt(upload.getUploadID());
+		payload.writeLong(upload.getBytesReceived());
+		clientInfo.getChannel().writeAndFlush(payload);
 	}
 	
-	private static void broadcastMessageToChatSession(ByteBuf payload, int messageID, ChatSession chatSession, ClientInfo sender) {
-
-		List<Channel> membersOfChatSession = chatSession.getActiveChannels();
-
-		/*
-		 * Increase reference count by the amount of clients that this message is gonna
-		 * be sent to.
-		 * 
-		 * Since the reference count is already at 1, we release once and increase by
-		 * the number of the users the message will be sent to.
-		 * 
-		 * For instance, if there are 2 users in the chat session, we increase the
-		 * payload's reference count by 2 (2 + 1 = 3) and release once (3 - 1 = 2),
-		 * which ensures the adequate number of writes for the specific number of users
-		 * 
-		 * Note: We cannot directly use (membersOfChatSession.size() - 1) because it would
-		 * throw an IllegalArgumentException if the size is 0.
-		 */
-		payload.retain(membersOfChatSession.size());
-		payload.release();
-
-		for (int i = 0; i < membersOfChatSession.size(); i++) {
-			Channel channel = membersOfChatSession.get(i);
-			
-			if (channel.equals(sender.getChannel())) {
-				ByteBuf messageSent = channel.alloc().ioBuffer();
-				messageSent.writeInt(ServerMessageType.MESSAGE_SUCCESFULLY_SENT.id);
-				messageSent.writeInt(chatSession.getChatSessionID());
-				messageSent.writeInt(messageID);
-				channel.writeAndFlush(messageSent);
-				continue;
-			}
-			
-			channel.writeAndFlush(payload.duplicate());
-		}
+	private void broadcastMessageToChatSession(ByteBuf payload, ChatSession chatSession) {
+		broadcastMessageToChatSession(payload, chatSession, clientInfo);
+	}
+	
+	/**
+	 * Sends message to every active member of the chat session except the sender,
+	 * who is instead acknowledged separately once his message has been accepted.
+	 * Releases payload.
+	 */
+	private static void broadcastMessageToChatSession(ByteBuf payload, ChatSession chatSession, ClientInfo sender) {
+		ChannelFanOut.broadcast(payload, chatSession.getChatSessionID(), chatSession.getActiveChannels(), sender.getChannel());
+	}
+	
+	private static void sendMessageSuccesfullySent(Channel channel, int chatSessionID, int messageID) {
+		ByteBuf messageSent = channel.alloc().ioBuffer();
+		messageSent.writeInt(ServerMessageType.MESSAGE_SUCCESFULLY_SENT.id);
+		messageSent.writeInt(chatSessionID);
+		messageSent.writeInt(messageID);
+		channel.writeAndFlush(messageSent);
 	}
 	
 	private static void broadcastToChatSession(ByteBuf payload, int messageID, ChatSession chatSession) {
 
-		List<Channel> membersOfChatSession = chatSession.getActiveChannels();
-
-		/*
-		 * Increase reference count by the amount of clients that this message is gonna
-		 * be sent to.
-		 * 
-		 * Since the reference count is already at 1, we release once and increase by
-		 * the number of the users the message will be sent to.
-		 * 
-		 * For instance, if there are 2 users in the chat session, we increase the
-		 * payload's reference count by 2 (2 + 1 = 3) and release once (3 - 1 = 2),
-		 * which ensures the adequate number of writes for the specific number of users
-		 * 
-		 * Note: We cannot directly use (membersOfChatSession.size() - 1) because it would
-		 * throw an IllegalArgumentException if the size is 0.
-		 */
-		payload.retain(membersOfChatSession.size());
-		payload.release();
-
-		for (int i = 0; i < membersOfChatSession.size(); i++) {
-			Channel channel = membersOfChatSession.get(i);
-			channel.writeAndFlush(payload.duplicate());
+		if (chatSession == null) {
+			payload.release();
+			return;
 		}
+
+		ChannelFanOut.broadcast(payload, chatSession.getChatSessionID(), chatSession.getActiveChannels(), null);
 	}
 
-	private void executeCommand(ClientCommandType commandType, ByteBuf args) {
-		executeCommand(clientInfo, commandType, args);
+	private void executeCommand(ClientCommandType commandType, ByteBuf args, boolean isChatSessionAddressedByID) {
+		executeCommand(clientInfo, commandType, args, isChatSessionAddressedByID);
+	}
+	
+	private static void executeCommand(ClientInfo clientInfo, ClientCommandType commandType, ByteBuf args) {
+		executeCommand(clientInfo, commandType, args, false);
 	}
 	
 	/**
@@ -332,7 +506,7 @@ final class MessageHandler extends ParentHandler {
 	 * change his username or to get his clientID
 	 * 
 	 */
-	private static void executeCommand(ClientInfo clientInfo, ClientCommandType commandType, ByteBuf args) {
+	private static void executeCommand(ClientInfo clientInfo, ClientCommandType commandType, ByteBuf args, boolean isChatSessionAddressedByID) {
 		
 		EpollSocketChannel channel = clientInfo.getChannel();
 		
@@ -359,10 +533,16 @@ final class MessageHandler extends ParentHandler {
 				payload.writeBytes(resultHolder.getResultMessage().getBytes());
 
 				if (resultHolder.isSuccessful()) {
-					clientInfo.setUsername(newUsername);
+					forClient(clientInfo.getClientID(), (ClientInfo ci) -> ci.setUsername(newUsername));
+					RecentMessages.changeUsername(clientInfo.getClientID(), newUsername);
+					EncodedHistoryPages.invalidateClient(clientInfo.getClientID());
 					
 					// Fetch username on behalf of the user
 					executeCommand(clientInfo, ClientCommandType.FETCH_USERNAME, Unpooled.EMPTY_BUFFER);
+					
+					for (ChatSession chatSession : clientInfo.getChatSessions()) {
+						broadcastMemberRenamed(chatSession, clientInfo);
+					}
 				}
 			}
 
@@ -389,12 +569,16 @@ final class MessageHandler extends ParentHandler {
 		}
 		case DOWNLOAD_FILE -> {
 			
-			int chatSessionIndex = args.readInt();
+			ChatSession chatSession = readChatSession(clientInfo, args, isChatSessionAddressedByID);
+			if (chatSession == null) {
+				return;
+			}
+			
 			int messageID = args.readInt();
 			
 			LoadedInMemoryFile file;
 			try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
-				file = conn.getFile(messageID, clientInfo.getChatSessions().get(chatSessionIndex).getChatSessionID());
+				file = conn.getFile(messageID, chatSession.getChatSessionID());
 			}
 
 			byte[] fileBytes = file.getFileBytes();
@@ -411,12 +595,16 @@ final class MessageHandler extends ParentHandler {
 		}
 		case DOWNLOAD_IMAGE -> {
 			
-			int chatSessionIndex = args.readInt();
+			ChatSession chatSession = readChatSession(clientInfo, args, isChatSessionAddressedByID);
+			if (chatSession == null) {
+				return;
+			}
+			
 			int messageID = args.readInt();
 			
 			LoadedInMemoryFile file;
 			try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
-				file = conn.getFile(messageID, clientInfo.getChatSessions().get(chatSessionIndex).getChatSessionID());
+				file = conn.getFile(messageID, chatSession.getChatSessionID());
 			}
 
 			byte[] fileBytes = file.getFileBytes();
@@ -432,6 +620,144 @@ final class MessageHandler extends ParentHandler {
 			
 			channel.writeAndFlush(payload);
 		}
+		case FETCH_THUMBNAIL -> {
+			
+			ChatSession chatSession = readChatSession(clientInfo, args, isChatSessionAddressedByID);
+			if (chatSession == null) {
+				return;
+			}
+			
+			int messageID = args.readInt();
+			int dimension = Thumbnails.selectDimension(args.readInt());
+			
+			StoredFile file;
+			try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+				file = conn.getStoredFile(messageID, chatSession.getChatSessionID());
+			}
+			
+			if (file == null) {
+				MessageByteBufCreator.sendMessageInfo(channel, "Image not found. (May have been deleted)");
+				return;
+			}
+			
+			if (file.contentType() != ContentType.IMAGE || !file.hasFile()) {
+				MessageByteBufCreator.sendMessageInfo(channel, "Message selected is not an image");
+				return;
+			}
+			
+			byte[] thumbnail;
+			try {
+				String attachmentHash;
+				if (file.isInAttachmentStore()) {
+					attachmentHash = file.attachmentHash();
+				} else {
+					// Images sent before the attachment store existed are moved into it once, so
+					// that their thumbnails can be stored next to them as well
+					attachmentHash = AttachmentStore.store(file.legacyFileBytes());
+					
+					try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+						conn.setAttachmentHash(messageID, chatSession.getChatSessionID(), attachmentHash);
+					}
+				}
+				
+				thumbnail = Thumbnails.get(attachmentHash, dimension);
+			} catch (IOException ioe) {
+				logger.error(Throwables.getStackTraceAsString(ioe));
+				MessageByteBufCreator.sendMessageInfo(channel, "An error occured while trying to create thumbnail");
+				return;
+			}
+			
+			ByteBuf payload = channel.alloc().ioBuffer();
+			payload.writeInt(ServerMessageType.COMMAND_RESULT.id);
+			payload.writeInt(ClientCommandResultType.FETCH_THUMBNAIL.id);
+			payload.writeInt(messageID);
+			payload.writeInt(dimension);
+			payload.writeBytes(thumbnail);
+			
+			channel.writeAndFlush(payload);
+		}
+		case STREAM_FILE -> {
+			
+			ChatSession chatSession = readChatSession(clientInfo, args, isChatSessionAddressedByID);
+			if (chatSession == null) {
+				return;
+			}
+			
+			int messageID = args.readInt();
+			long offset = args.readLong();
+			long length = args.readLong();
+			
+			StoredFile file;
+			try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+				file = conn.getStoredFile(messageID, chatSession.getChatSessionID());
+			}
+			
+			if (file == null) {
+				MessageByteBufCreator.sendMessageInfo(channel, "File not found. (May have been deleted)");
+				return;
+			}
+			
+			if (!file.hasFile()) {
+				MessageByteBufCreator.sendMessageInfo(channel, "Message selected has no file");
+				return;
+			}
+			
+			ChunkedInput<ByteBuf> fileChunks;
+			long fileSize;
+			try {
+				if (file.isInAttachmentStore()) {
+					FileChannel fileChannel = FileChannel.open(AttachmentStore.getPath(file.attachmentHash()), StandardOpenOption.READ);
+					fileSize = fileChannel.size();
+					
+					if (length == -1) {
+						length = fileSize - offset;
+					}
+					
+					if (offset < 0 || offset > fileSize || length < 0 || length > fileSize - offset) {
+						fileChannel.close();
+						MessageByteBufCreator.sendMessageInfo(channel, "Requested range exceeds the file's size");
+						return;
+					}
+					
+					fileChunks = new ChunkedNioFile(fileChannel, offset, length, ServerSettings.FILE_DOWNLOAD_CHUNK_BYTES);
+				} else {
+					byte[] fileBytes = file.legacyFileBytes();
+					fileSize = fileBytes.length;
+					
+					if (length == -1) {
+						length = fileSize - offset;
+					}
+					
+					if (offset < 0 || offset > fileSize || length < 0 || length > fileSize - offset) {
+						MessageByteBufCreator.sendMessageInfo(channel, "Requested range exceeds the file's size");
+						return;
+					}
+					
+					fileChunks = new ChunkedStream(new ByteArrayInputStream(fileBytes, (int) offset, (int) length), ServerSettings.FILE_DOWNLOAD_CHUNK_BYTES);
+				}
+			} catch (IOException ioe) {
+				logger.error(Throwables.getStackTraceAsString(ioe));
+				MessageByteBufCreator.sendMessageInfo(channel, "An error occured while trying to read the file");
+				return;
+			}
+			
+			byte[] fileNameBytes = file.fileName();
+			
+			ByteBuf payload = channel.alloc().ioBuffer();
+			payload.writeInt(ServerMessageType.COMMAND_RESULT.id);
+			payload.writeInt(ClientCommandResultType.STREAM_FILE.id);
+			payload.writeInt(messageID);
+			payload.writeLong(fileSize);
+			payload.writeLong(offset);
+			payload.writeLong(length);
+			payload.writeInt(fileNameBytes.length);
+			payload.writeBytes(fileNameBytes);
+			
+			// Chunks are only read from the file as the channel becomes writable, so
+			// that a slow client never causes the whole file to be buffered in memory
+			channel.write(payload);
+			channel.writeAndFlush(new FileDownloadChunkedInput(fileChunks, messageID, offset));
+		}
 		case SEND_CHAT_REQUEST -> {
 			
 			int receiverID = args.readInt();
@@ -468,17 +794,13 @@ final class MessageHandler extends ParentHandler {
 
 			if (chatSessionID != -1) {
 
-				List<Integer> membersList = Ints.asList(receiverClientID, senderClientID);
-				List<Channel> activeMembersList = new ArrayList<>(membersList.size());
-
-				ChatSession chatSession = new ChatSession(chatSessionID, activeMembersList, membersList);
-
-				ActiveChatSessions.addChatSession(chatSessionID, chatSession);
+				ChatSession chatSession = ActiveChatSessions.addChatSession(
+						new ChatSession(chatSessionID, Ints.asList(receiverClientID, senderClientID)));
 
 				clientInfo.getChatRequests().remove(Integer.valueOf(senderClientID));
-				clientInfo.getChatSessions().add(chatSession);
+				clientInfo.addChatSession(chatSession);
 
-				forClient(senderClientID, (ClientInfo ci) -> ci.getChatSessions().add(chatSession));
+				forClient(senderClientID, (ClientInfo ci) -> ci.addChatSession(chatSession));
 			} else {
 				ByteBuf payload = channel.alloc().ioBuffer();
 				payload.writeInt(ServerMessageType.SERVER_MESSAGE_INFO.id);
@@ -512,8 +834,12 @@ final class MessageHandler extends ParentHandler {
 			int chatSessionID;
 			
 			{
-				int chatSessionIndex = args.readInt();
-				chatSessionID = clientInfo.getChatSessions().get(chatSessionIndex).getChatSessionID();
+				ChatSession chatSession = readChatSession(clientInfo, args, isChatSessionAddressedByID);
+				if (chatSession == null) {
+					return;
+				}
+				
+				chatSessionID = chatSession.getChatSessionID();
 			}
 			
 			int resultUpdate;
@@ -530,13 +856,15 @@ final class MessageHandler extends ParentHandler {
 				channel.writeAndFlush(payload);
 			} else {
 				
+				RecentMessages.removeChatSession(chatSessionID);
+				EncodedHistoryPages.invalidateChatSession(chatSessionID);
+				
 				ChatSession chatSession = ActiveChatSessions.getChatSession(chatSessionID);
 				
 				if (chatSession != null) {
 					
-					List<Integer> activeMembers = chatSession.getActiveMembers();
-					for (int i = 0; i < activeMembers.size(); i++) {
-						forClient(activeMembers.get(i), (ClientInfo ci) -> ci.getChatSessions().remove(chatSession));
+					for (Integer memberClientID : chatSession.getActiveMembers()) {
+						forClient(memberClientID, (ClientInfo ci) -> ci.removeChatSession(chatSession));
 					}
 					
 					ActiveChatSessions.removeChatSession(chatSessionID);
@@ -548,8 +876,12 @@ final class MessageHandler extends ParentHandler {
 			int chatSessionID;
 
 			{
-				int chatSessionIndex = args.readInt();
-				chatSessionID = clientInfo.getChatSessions().get(chatSessionIndex).getChatSessionID();
+				ChatSession chatSession = readChatSession(clientInfo, args, isChatSessionAddressedByID);
+				if (chatSession == null) {
+					return;
+				}
+				
+				chatSessionID = chatSession.getChatSessionID();
 			}
 
 			int messageID = args.readInt();
@@ -563,6 +895,9 @@ final class MessageHandler extends ParentHandler {
 
 			if (isSuccesfull) {
 
+				RecentMessages.remove(chatSessionID, messageID);
+				EncodedHistoryPages.invalidate(chatSessionID, messageID);
+
 				ByteBuf payload = channel.alloc().ioBuffer();
 				payload.writeInt(ServerMessageType.COMMAND_RESULT.id);
 				payload.writeInt(ClientCommandResultType.DELETE_CHAT_MESSAGE.id);
@@ -599,14 +934,9 @@ final class MessageHandler extends ParentHandler {
 				conn.logout(address, clientInfo.getClientID());
 			}
 
-			// Search for the specific IP address and if found logout that address
-			forClient(clientInfo.getClientID(), (ClientInfo ci) -> {
-				if (!ci.getInetAddress().equals(address)) {
-					return;
-				}
-				
-				ci.getChannel().close();
-			});
+			for (ClientInfo device : ActiveClients.getDevices(clientInfo.getClientID(), address)) {
+				device.getChannel().close();
+			}
 		}
 		case LOGOUT_ALL_DEVICES -> {
 
@@ -712,59 +1042,149 @@ final class MessageHandler extends ParentHandler {
 			
 			channel.writeAndFlush(payload);
 		}
-		case FETCH_WRITTEN_TEXT -> {
+		case FETCH_USER_ICONS -> {
 			
-			int chatSessionIndex = args.readInt();
-			int chatSessionID = clientInfo.getChatSessions().get(chatSessionIndex).getChatSessionID();
-
-			int numOfMessagesAlreadySelected = args.readInt();
+			int numberOfClients = Math.max(0, Math.min(args.readInt(), args.readableBytes() / Integer.BYTES));
 			
-			Message[] messages;
+			// Icons are only available to members of the client's chat sessions
+			Set<Integer> membersOfAllChatSessions = new HashSet<>();
+			for (ChatSession chatSession : clientInfo.getChatSessions()) {
+				membersOfAllChatSessions.addAll(chatSession.getActiveMembers());
+			}
+			
+			int[] clientIDS = new int[numberOfClients];
+			int numberOfMembers = 0;
+			for (int i = 0; i < numberOfClients; i++) {
+				int clientID = args.readInt();
+				
+				if (membersOfAllChatSessions.contains(clientID)) {
+					clientIDS[numberOfMembers++] = clientID;
+				}
+			}
 			
+			List<UserIcon> icons;
 			try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
-				messages = conn.selectMessages(chatSessionID, numOfMessagesAlreadySelected, ServerSettings.NUMBER_OF_MESSAGES_TO_READ_FROM_THE_DATABASE_AT_A_TIME);
+				icons = conn.selectUserIcons(Arrays.copyOf(clientIDS, numberOfMembers));
 			}
 			
 			ByteBuf payload = channel.alloc().ioBuffer();
 			payload.writeInt(ServerMessageType.COMMAND_RESULT.id);
-			payload.writeInt(ClientCommandResultType.GET_WRITTEN_TEXT.id);
-			payload.writeInt(chatSessionIndex);
-
-			for (int i = 0; i < messages.length; i++) {
+			payload.writeInt(ClientCommandResultType.GET_USER_ICONS.id);
+			payload.writeInt(icons.size());
+			for (UserIcon icon : icons) {
+				byte[] hashBytes = icon.hash().getBytes(StandardCharsets.US_ASCII);
+				
+				payload.writeInt(icon.clientID());
+				payload.writeInt(hashBytes.length);
+				payload.writeBytes(hashBytes);
+				payload.writeInt(icon.icon().length);
+				payload.writeBytes(icon.icon());
+			}
+			
+			channel.writeAndFlush(payload);
+		}
+		case FETCH_WRITTEN_TEXT -> {
+			
+			// Echoed back as is, so that the client can tell which chat session the
+			// messages belong to
+			int chatSessionIndexOrID = args.readInt();
+			
+			ChatSession chatSession = resolveChatSession(clientInfo, chatSessionIndexOrID, isChatSessionAddressedByID);
+			if (chatSession == null) {
+				MessageByteBufCreator.sendMessageInfo(channel, CHAT_SESSION_NOT_FOUND);
+				return;
+			}
+			
+			int chatSessionID = chatSession.getChatSessionID();
 
-				Message message = messages[i];
-				byte[] messageBytes = message.getText();
-				byte[] fileNameBytes = message.getFileName();
-				byte[] usernameBytes = message.getUsername().getBytes();
-				long timeWritten = message.getTimeWritten();
-				ContentType contentType = message.getContentType();
+			int numOfMessagesAlreadySelected = args.readInt();
+			
+			long generation = EncodedHistoryPages.getGeneration();
+			long recentMessagesGeneration = RecentMessages.getGeneration();
+			
+			Message[] messages = null;
+			
+			// The newest page is kept in memory
+			if (numOfMessagesAlreadySelected == 0) {
+				messages = RecentMessages.getRecent(chatSessionID);
+			}
+			
+			if (messages == null) {
+				try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+					messages = conn.selectMessages(chatSessionID, numOfMessagesAlreadySelected, ServerSettings.NUMBER_OF_MESSAGES_TO_READ_FROM_THE_DATABASE_AT_A_TIME);
+				}
 				
-				payload.writeInt((contentType.id));
-				payload.writeInt(message.getClientID());
-				payload.writeInt(message.getMessageID());
+				if (numOfMessagesAlreadySelected == 0) {
+					messages = RecentMessages.merge(chatSessionID, messages, recentMessagesGeneration);
+				}
+			}
+			
+			ByteBuf header = channel.alloc().ioBuffer(Integer.BYTES * 3);
+			header.writeInt(ServerMessageType.COMMAND_RESULT.id);
+			header.writeInt(ClientCommandResultType.GET_WRITTEN_TEXT.id);
+			header.writeInt(chatSessionIndexOrID);
 
-				payload.writeInt(usernameBytes.length);
-				payload.writeBytes(usernameBytes);
+			CompositeByteBuf payload = channel.alloc().compositeBuffer(2);
+			payload.addComponents(true, header, EncodedHistoryPages.get(chatSessionID, messages, generation));
 
-				payload.writeLong(timeWritten);
+			channel.writeAndFlush(payload);
+		}
+		case FETCH_MESSAGES_BEFORE -> {
+			
+			int chatSessionIndexOrID = args.readInt();
+			
+			ChatSession chatSession = resolveChatSession(clientInfo, chatSessionIndexOrID, isChatSessionAddressedByID);
+			if (chatSession == null) {
+				MessageByteBufCreator.sendMessageInfo(channel, CHAT_SESSION_NOT_FOUND);
+				return;
+			}
+			
+			int chatSessionID = chatSession.getChatSessionID();
+			
+			int beforeMessageID = args.readInt();
+			int numOfMessagesToSelect = Math.max(0, Math.min(args.readInt(), ServerSettings.NUMBER_OF_MESSAGES_TO_READ_FROM_THE_DATABASE_AT_A_TIME));
+			
+			long generation = EncodedHistoryPages.getGeneration();
+			
+			Message[] messages;
+			
+			if (beforeMessageID == -1) {
 				
-				switch (contentType) {
-				case TEXT -> {
-					payload.writeInt(messageBytes.length);
-					payload.writeBytes(messageBytes);
-				}
-				case FILE, IMAGE -> {
-					payload.writeInt(fileNameBytes.length);
-					payload.writeBytes(fileNameBytes);
+				long recentMessagesGeneration = RecentMessages.getGeneration();
+				
+				// The newest page is kept in memory
+				messages = RecentMessages.getRecent(chatSessionID);
+				
+				if (messages == null) {
+					try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+						messages = conn.selectMessagesBefore(chatSessionID, Integer.MAX_VALUE, ServerSettings.NUMBER_OF_MESSAGES_TO_READ_FROM_THE_DATABASE_AT_A_TIME);
+					}
+					
+					messages = RecentMessages.merge(chatSessionID, messages, recentMessagesGeneration);
 				}
+				
+				messages = Arrays.copyOfRange(messages, Math.max(0, messages.length - numOfMessagesToSelect), messages.length);
+			} else {
+				try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+					messages = conn.selectMessagesBefore(chatSessionID, beforeMessageID, numOfMessagesToSelect);
 				}
 			}
-
+			
+			ByteBuf header = channel.alloc().ioBuffer(Integer.BYTES * 4);
+			header.writeInt(ServerMessageType.COMMAND_RESULT.id);
+			header.writeInt(ClientCommandResultType.GET_MESSAGES_BEFORE.id);
+			header.writeInt(chatSessionIndexOrID);
+			header.writeInt(beforeMessageID);
+			
+			CompositeByteBuf payload = channel.alloc().compositeBuffer(2);
+			payload.addComponents(true, header, EncodedHistoryPages.get(chatSessionID, messages, generation));
+			
 			channel.writeAndFlush(payload);
 		}
 		case FETCH_CHAT_REQUESTS -> {
 			
-			List<Integer> chatRequests = clientInfo.getChatRequests();
+			// Copied, since chat requests may be added or removed meanwhile
+			List<Integer> chatRequests = List.copyOf(clientInfo.getChatRequests());
 			
 			ByteBuf payload = channel.alloc().ioBuffer(Integer.BYTES * 3 + Integer.BYTES * chatRequests.size());
 			payload.writeInt(ServerMessageType.COMMAND_RESULT.id);
@@ -790,6 +1210,17 @@ final class MessageHandler extends ParentHandler {
 
 			payload.writeInt(chatSessions.size());
 			if (!chatSessions.isEmpty()) {
+
+				// Profiles of the members of all chat sessions are selected at once
+				int[] membersOfAllChatSessions = chatSessions.stream()
+						.flatMap((ChatSession chatSession) -> chatSession.getActiveMembers().stream())
+						.mapToInt(Integer::intValue)
+						.filter((int clientID) -> clientID != clientInfo.getClientID())
+						.distinct()
+						.toArray();
+
+				Map<Integer, UserProfile> clientIDSToProfiles = UserProfileCache.getAll(membersOfAllChatSessions);
+
 				for (int i = 0; i < chatSessions.size(); i++) {
 
 					ChatSession chatSession = chatSessions.get(i);
@@ -800,43 +1231,46 @@ final class MessageHandler extends ParentHandler {
 
 					// The one that is subtracted is attributed to the user inquring this command
 					payload.writeInt(membersClientIDS.size() - 1);
-					try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
-						for (int j = 0; j < membersClientIDS.size(); j++) {
-
-							int clientID = membersClientIDS.get(j);
-
-							boolean isActive;
-							List<ClientInfo> memberClientInfo = clientIDSToActiveClients.get(clientID);
-							
-							byte[] usernameBytes;
-							byte[] iconBytes = conn.selectUserIcon(clientID);
-							
-							if (memberClientInfo == null) {
-								usernameBytes = conn.getUsername(clientID).getBytes();
-								isActive = false;
-							} else {
-								ClientInfo random = memberClientInfo.get(0);
-								if (clientInfo.getChannel().equals(random.getChannel())) {
-									continue;
-								}
-								
-								usernameBytes = random.getUsername().getBytes();
-								isActive = true;
-							}
-
-							payload.writeInt(clientID);
-							payload.writeBoolean(isActive);
-							payload.writeInt(usernameBytes.length);
-							payload.writeBytes(usernameBytes);
-							payload.writeInt(iconBytes.length);
-							payload.writeBytes(iconBytes);
+					for (int j = 0; j < membersClientIDS.size(); j++) {
+
+						int clientID = membersClientIDS.get(j);
+
+						if (clientID == clientInfo.getClientID()) {
+							continue;
+						}
+
+						UserProfile profile = clientIDSToProfiles.get(clientID);
+						ClientInfo memberClientInfo = ActiveClients.getAnyDevice(clientID);
+
+						boolean isActive = memberClientInfo != null;
+
+						byte[] usernameBytes;
+						byte[] iconHashBytes = profile == null || profile.iconHash() == null
+								? EmptyArrays.EMPTY_BYTE_ARRAY
+								: profile.iconHash().getBytes(StandardCharsets.US_ASCII);
+
+						if (isActive) {
+							usernameBytes = memberClientInfo.getUsername().getBytes();
+						} else {
+							usernameBytes = profile == null ? EmptyArrays.EMPTY_BYTE_ARRAY : profile.displayName().getBytes();
 						}
 
+						payload.writeInt(clientID);
+						payload.writeBoolean(isActive);
+						payload.writeInt(usernameBytes.length);
+						payload.writeBytes(usernameBytes);
+						payload.writeInt(iconHashBytes.length);
+						payload.writeBytes(iconHashBytes);
 					}
 
-					if (!chatSession.getActiveChannels().contains(clientInfo.getChannel())) {
-						chatSession.getActiveChannels().add(clientInfo.getChannel());
-						refreshChatSession(chatSession);
+					if (!chatSession.isActive(clientInfo.getChannel())) {
+						ChatSession activeChatSession = ActiveChatSessions.addMember(chatSession, clientInfo.getChannel());
+						
+						// Chat session was unregistered - and possibly loaded again by another member
+						// - before the client became active in it
+						if (activeChatSession != chatSession) {
+							clientInfo.replaceChatSession(activeChatSession);
+						}
 					}
 
 				}
@@ -896,25 +1330,62 @@ final class MessageHandler extends ParentHandler {
 		
 	}
 	
-	private static void forClient(int clientID, Consumer<ClientInfo> DO) {
-		List<ClientInfo> idont =  clientIDSToActiveClients.get(clientID);
+	/**
+	 * @param chatSessionIndexOrID the index of the chat session in the list
+	 *                             returned by FETCH_CHAT_SESSIONS; or its id if
+	 *                             isAddressedByID
+	 * @return the chat session or null if the client is not a member of it
+	 */
+	private static ChatSession resolveChatSession(ClientInfo clientInfo, int chatSessionIndexOrID, boolean isAddressedByID) {
 		
-		if (idont == null) {
-			return;
+		if (isAddressedByID) {
+			return clientInfo.getChatSession(chatSessionIndexOrID);
 		}
 		
-		for (ClientInfo clientInfo : idont) {
-			DO.accept(clientInfo);;
+		try {
+			return clientInfo.getChatSessions().get(chatSessionIndexOrID);
+		} catch (IndexOutOfBoundsException ioobe) {
+			return null;
 		}
 	}
-
-	private static void refreshChatSession(ChatSession chatSession) {
-		List<Integer> activeMembers = chatSession.getActiveMembers();
-		for (int i = 0; i < activeMembers.size(); i++) {
-			forClient(activeMembers.get(i), (ClientInfo member) -> {
-				executeCommand(member, ClientCommandType.FETCH_CHAT_SESSIONS, Unpooled.EMPTY_BUFFER);
-			});
+	
+	/**
+	 * Reads the chat session addressed by the client and informs him if he is not
+	 * a member of it.
+	 * 
+	 * @return the chat session or null if the client is not a member of it
+	 */
+	private static ChatSession readChatSession(ClientInfo clientInfo, ByteBuf msg, boolean isAddressedByID) {
+		
+		ChatSession chatSession = resolveChatSession(clientInfo, msg.readInt(), isAddressedByID);
+		
+		if (chatSession == null) {
+			MessageByteBufCreator.sendMessageInfo(clientInfo.getChannel(), CHAT_SESSION_NOT_FOUND);
 		}
+		
+		return chatSession;
+	}
+	
+	private static void forClient(int clientID, Consumer<ClientInfo> DO) {
+		for (ClientInfo device : ActiveClients.getDevices(clientID)) {
+			DO.accept(device);
+		}
+	}
+
+	/**
+	 * Informs the rest of the active members of a chat session that a member was
+	 * renamed; so that they can update the chat session in place, rather than
+	 * having to fetch every chat session all over again.
+	 */
+	private static void broadcastMemberRenamed(ChatSession chatSession, ClientInfo member) {
+		
+		ByteBuf payload = member.getChannel().alloc().ioBuffer();
+		payload.writeInt(ServerMessageType.MEMBER_RENAMED.id);
+		payload.writeInt(chatSession.getChatSessionID());
+		payload.writeInt(member.getClientID());
+		payload.writeBytes(member.getUsername().getBytes());
+		
+		ChannelFanOut.broadcast(payload, chatSession.getChatSessionID(), chatSession.getActiveChannels(), member.getChannel());
 	}
 
 }
@@ -25,6 +25,7 @@ import org.apache.logging.log4j.Logger;
 import com.google.common.base.Throwables;
 
 import github.koukobin.ermis.server.main.java.server.ClientInfo;
+import github.koukobin.ermis.server.main.java.server.util.BlockingWorkExecutor;
 import github.koukobin.ermis.server.main.java.server.util.MessageByteBufCreator;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
@@ -87,12 +88,33 @@ abstract sealed class ParentHandler extends SimpleChannelInboundHandler<ByteBuf>
 		}
 		
 		lastMessageSent = currentTime;
-		channelRead1(ctx, msg);
+		
+		msg.retain(); // SimpleChannelInboundHandler releases msg once this method returns
+		boolean isAccepted = BlockingWorkExecutor.tryExecute(ctx.channel(), () -> {
+			try {
+				channelRead1(ctx, msg);
+			} catch (Exception e) {
+				exceptionCaught(ctx, e);
+			} finally {
+				msg.release();
+			}
+		});
+		
+		if (!isAccepted) {
+			msg.release();
+			logger.debug("Rejected request of {}; too many pending requests", ctx.channel().remoteAddress());
+			MessageByteBufCreator.sendMessageInfo(ctx,
+					"You have too many pending requests. Please wait for them to be processed and try again.");
+		}
 	}
 	
 	/**
-	 * Note: ByteBuf message is automatically released since this class extends
-	 * SimpleChannelInboundHandler.
+	 * Executed by the {@link BlockingWorkExecutor} and not by the event loop, in
+	 * order for blocking calls - such as database queries - to not stall the
+	 * network I/O of other clients. Messages of the same client are processed one
+	 * at a time and in the order they were received.
+	 * 
+	 * Note: ByteBuf message is automatically released once this method returns.
 	 */
 	public abstract void channelRead1(ChannelHandlerContext ctx, ByteBuf msg) throws IOException;
 	
@@ -20,6 +20,7 @@ import java.io.IOException;
 import github.koukobin.ermis.common.entry.EntryType;
 import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.ErmisDatabase;
 import github.koukobin.ermis.server.main.java.server.ClientInfo;
+import github.koukobin.ermis.server.main.java.server.util.BlockingWorkExecutor;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
@@ -32,22 +33,35 @@ public final class StartingEntryHandler extends ParentHandler {
 	
 	private boolean isIPVerified;
 	
+	private final boolean isIPVerificationPending;
+	
 	public StartingEntryHandler(ClientInfo clientInfo, boolean isLoggedIn) {
 		super(clientInfo);
 		this.isIPVerified = isLoggedIn;
+		this.isIPVerificationPending = false;
 	}
 	
 	public StartingEntryHandler(ClientInfo clientInfo) {
 		super(clientInfo);
-
-		try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
-			isIPVerified = conn.isLoggedIn(clientInfo.getChannel().remoteAddress().getAddress());
-		}
+		this.isIPVerificationPending = true;
 	}
 	
 	@Override
 	public void handlerAdded(ChannelHandlerContext ctx) {
-		ctx.channel().writeAndFlush(Unpooled.copyBoolean(isIPVerified));
+		
+		if (!isIPVerificationPending) {
+			ctx.channel().writeAndFlush(Unpooled.copyBoolean(isIPVerified));
+			return;
+		}
+		
+		// Executed before any message of the client is processed
+		BlockingWorkExecutor.execute(ctx.channel(), () -> {
+			try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+				isIPVerified = conn.isLoggedIn(clientInfo.getChannel().remoteAddress().getAddress());
+			}
+			
+			ctx.channel().writeAndFlush(Unpooled.copyBoolean(isIPVerified));
+		});
 	}
 
 	@Override
@@ -70,9 +84,14 @@ public final class StartingEntryHandler extends ParentHandler {
 					check = conn.checkAuthenticationViaHash(new String(email), new String(passwordHash));
 				}
 				
-				ctx.channel().writeAndFlush(Unpooled.copyBoolean(check));
+				// Transition the pipeline before informing the client, otherwise his
+				// subsequent messages could reach this handler instead of the next one
 				if (check) {
 					EntryHandler.login(ctx, clientInfo);
+				}
+				
+				ctx.channel().writeAndFlush(Unpooled.copyBoolean(check));
+				if (check) {
 					return;
 				}
 			}
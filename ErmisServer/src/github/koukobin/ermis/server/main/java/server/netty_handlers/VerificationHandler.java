@@ -17,7 +17,6 @@ package github.koukobin.ermis.server.main.java.server.netty_handlers;
 
 import java.io.IOException;
 import java.util.Map.Entry;
-import java.util.concurrent.CompletableFuture;
 
 import javax.mail.MessagingException;
 
@@ -40,9 +39,6 @@ abstract non-sealed class VerificationHandler extends EntryHandler {
 	private static final int ATTEMPTS = 3;
 	private static final int GENERATED_VERIFICATION_CODE_LENGTH = 5;
 
-	// Initialize like this in order for theRunAsync to work properly
-	private static final CompletableFuture<?> pendingEmailsQueue = CompletableFuture.runAsync(() -> {});
-
 	private int attemptsRemaining;
 	private final int generatedVerificationCode;
 
@@ -67,13 +63,11 @@ abstract non-sealed class VerificationHandler extends EntryHandler {
 		
 		String codeString = Integer.toString(generatedVerificationCode);
 
-		pendingEmailsQueue.thenRunAsync(() -> {
-			try {
-				EmailerService.sendEmailWithHTML("Security Alert", createEmailMessage(emailAddress, codeString), emailAddress);
-			} catch (MessagingException me) {
-				logger.error("Failed to send email", me);
-			}
-		});
+		try {
+			EmailerService.sendEmailWithHTML("Security Alert", createEmailMessage(emailAddress, codeString), emailAddress);
+		} catch (MessagingException me) {
+			logger.error("Failed to send email", me);
+		}
 	}
 	
 	@Override
@@ -119,9 +113,8 @@ abstract non-sealed class VerificationHandler extends EntryHandler {
 			payload.writeBytes(info);
 		}
 		
-		ctx.channel().writeAndFlush(payload);
-		logger.debug("Sent result");
-		
+		// Transition the pipeline before informing the client, otherwise his
+		// subsequent messages could reach this handler instead of the next one
 		if (isVerificationComplete) {
 			if (entryResult.isSuccessful()) {
 				success(ctx);
@@ -129,6 +122,9 @@ abstract non-sealed class VerificationHandler extends EntryHandler {
 				failed(ctx);
 			}
 		}
+		
+		ctx.channel().writeAndFlush(payload);
+		logger.debug("Sent result");
 	}
 
 	public abstract String createEmailMessage(String account, String generatedVerificationCode);
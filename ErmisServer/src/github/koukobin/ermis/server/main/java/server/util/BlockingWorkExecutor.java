@@ -0,0 +1,211 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Throwables;
+
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * Executes blocking work - primarily database queries - on behalf of clients,
+ * so that it never stalls the event loops handling network I/O.
+ *
+ * Every channel has its own mailbox, which is drained by a shared pool of
+ * worker threads. Tasks submitted for the same channel are executed one at a
+ * time in the order they were submitted, while tasks of different channels run
+ * in parallel. Anything written to the channel from within a task is handed to
+ * the channel's event loop by Netty itself.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class BlockingWorkExecutor {
+
+	private static final Logger logger = LogManager.getLogger("server");
+
+	private static final AttributeKey<Mailbox> MAILBOX = AttributeKey.valueOf("blockingWorkMailbox");
+
+	/**
+	 * Maximum number of tasks a mailbox can execute before yielding the worker
+	 * thread to other mailboxes, so that a busy client cannot monopolize it.
+	 */
+	private static final int MAX_TASKS_PER_DRAIN = 16;
+
+	private static final ExecutorService workers;
+
+	private static final LongAdder executedTasks = new LongAdder();
+	private static final LongAdder rejectedTasks = new LongAdder();
+	private static final LongAdder failedTasks = new LongAdder();
+	private static final AtomicInteger pendingTasks = new AtomicInteger();
+
+	public record Metrics(int pendingTasks, long executedTasks, long rejectedTasks, long failedTasks) {}
+
+	static {
+		AtomicInteger threadCount = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(ServerSettings.BLOCKING_WORK_THREADS, (Runnable r) -> {
+			Thread thread = new Thread(r, "Thread-BlockingWork-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private BlockingWorkExecutor() {}
+
+	/**
+	 * Attempts to queue task in the channel's mailbox; it will be executed after
+	 * every task previously submitted for this channel has completed.
+	 *
+	 * @return false if the channel's mailbox is full and the task was rejected
+	 */
+	public static boolean tryExecute(Channel channel, Runnable task) {
+
+		Mailbox mailbox = getMailbox(channel);
+
+		if (!mailbox.offer(task, ServerSettings.BLOCKING_WORK_QUEUE_DEPTH)) {
+			rejectedTasks.increment();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Same as {@link #tryExecute(Channel, Runnable)} but ignores the mailbox's
+	 * depth. Intended for work the server itself requires to be done, such as
+	 * loading and unloading a client, rather than work requested by the client.
+	 */
+	public static void execute(Channel channel, Runnable task) {
+		getMailbox(channel).offer(task, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return whether there are tasks of the channel waiting to be executed, not
+	 *         counting any task being executed
+	 */
+	public static boolean hasQueuedTasks(Channel channel) {
+		Mailbox mailbox = channel.attr(MAILBOX).get();
+		return mailbox != null && !mailbox.tasks.isEmpty();
+	}
+
+	public static Metrics getMetrics() {
+		return new Metrics(pendingTasks.get(), executedTasks.sum(), rejectedTasks.sum(), failedTasks.sum());
+	}
+
+	private static Mailbox getMailbox(Channel channel) {
+
+		Mailbox mailbox = channel.attr(MAILBOX).get();
+
+		if (mailbox == null) {
+			Mailbox newMailbox = new Mailbox();
+			mailbox = channel.attr(MAILBOX).setIfAbsent(newMailbox);
+
+			if (mailbox == null) {
+				mailbox = newMailbox;
+			}
+		}
+
+		return mailbox;
+	}
+
+	public static void shutdown() {
+		workers.shutdown();
+		try {
+			workers.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		Metrics metrics = getMetrics();
+		logger.info("Blocking work executor stopped; executed: {}, rejected: {}, failed: {}, abandoned: {}",
+				metrics.executedTasks(), metrics.rejectedTasks(), metrics.failedTasks(), metrics.pendingTasks());
+	}
+
+	private static final class Mailbox implements Runnable {
+
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+		boolean offer(Runnable task, int maxSize) {
+
+			if (size.incrementAndGet() > maxSize) {
+				size.decrementAndGet();
+				return false;
+			}
+
+			pendingTasks.incrementAndGet();
+			tasks.add(task);
+			schedule();
+
+			return true;
+		}
+
+		private void schedule() {
+			if (!tasks.isEmpty() && isScheduled.compareAndSet(false, true)) {
+				try {
+					workers.execute(this);
+				} catch (RejectedExecutionException ree) {
+					logger.debug("Task submitted after blocking work executor has been shut down");
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+
+			for (int i = 0; i < MAX_TASKS_PER_DRAIN; i++) {
+
+				Runnable task = tasks.poll();
+
+				if (task == null) {
+					break;
+				}
+
+				try {
+					task.run();
+				} catch (Throwable t) {
+					failedTasks.increment();
+					logger.error(Throwables.getStackTraceAsString(t));
+				} finally {
+					size.decrementAndGet();
+					pendingTasks.decrementAndGet();
+					executedTasks.increment();
+				}
+			}
+
+			isScheduled.set(false);
+
+			// Either tasks remain because the drain limit was reached or a task was added
+			// after the last poll but before the flag was reset
+			schedule();
+		}
+	}
+}
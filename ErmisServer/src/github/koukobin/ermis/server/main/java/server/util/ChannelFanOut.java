@@ -0,0 +1,101 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server.util;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+/**
+ * Writes the same payload to many channels.
+ *
+ * Writing to a channel from outside its event loop submits a task to that
+ * event loop for every write and every flush. Instead, recipients are grouped
+ * by event loop and each event loop is handed a single task, which writes the
+ * payload to all of its recipients before flushing them.
+ *
+ * Recipients which do not keep up are dealt with by the
+ * {@link SlowConsumerHandler}.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class ChannelFanOut {
+
+	private ChannelFanOut() {}
+
+	/**
+	 * Releases payload.
+	 *
+	 * @param chatSessionID the chat session the payload is broadcast to
+	 * @param excluded      channel the payload is not to be written to; may be
+	 *                      null
+	 */
+	public static void broadcast(ByteBuf payload, int chatSessionID, Iterable<Channel> channels, Channel excluded) {
+
+		Map<EventLoop, List<Channel>> eventLoopsToChannels = new IdentityHashMap<>();
+
+		for (Channel channel : channels) {
+			if (channel == excluded) {
+				continue;
+			}
+
+			eventLoopsToChannels.computeIfAbsent(channel.eventLoop(), (EventLoop eventLoop) -> new ArrayList<>()).add(channel);
+		}
+
+		for (Map.Entry<EventLoop, List<Channel>> entry : eventLoopsToChannels.entrySet()) {
+
+			EventLoop eventLoop = entry.getKey();
+			List<Channel> recipients = entry.getValue();
+
+			// Retained once per event loop and released once its recipients have been
+			// written to
+			ByteBuf retainedPayload = payload.retain();
+
+			if (eventLoop.inEventLoop()) {
+				writeAndFlush(retainedPayload, chatSessionID, recipients);
+			} else {
+				try {
+					eventLoop.execute(() -> writeAndFlush(retainedPayload, chatSessionID, recipients));
+				} catch (RejectedExecutionException ree) {
+					retainedPayload.release(); // Event loop is shutting down
+				}
+			}
+		}
+
+		payload.release();
+	}
+
+	private static void writeAndFlush(ByteBuf payload, int chatSessionID, List<Channel> recipients) {
+		try {
+			for (int i = 0; i < recipients.size(); i++) {
+				SlowConsumerHandler.write(recipients.get(i), payload.retainedDuplicate(), chatSessionID);
+			}
+
+			for (int i = 0; i < recipients.size(); i++) {
+				recipients.get(i).flush();
+			}
+		} finally {
+			payload.release();
+		}
+	}
+}
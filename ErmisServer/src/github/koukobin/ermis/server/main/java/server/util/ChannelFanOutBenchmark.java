@@ -0,0 +1,194 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server.util;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Load test measuring broadcasts per second against the number of recipients,
+ * through {@link ChannelFanOut} and through a writeAndFlush per recipient - as
+ * chat sessions were broadcast to before it.
+ *
+ * Recipients are connected over the loopback interface to receivers in the
+ * same process, which merely count the bytes they receive. Recipients are
+ * spread across as many event loops as there are processors, and broadcasts
+ * are made from a thread outside of them - as they are by the server.
+ *
+ * Must be run where the server's configuration is installed, since
+ * {@link SlowConsumerHandler} reads its policy from it.
+ *
+ * Usage: ChannelFanOutBenchmark [comma separated recipient counts] [broadcasts per run]
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public class ChannelFanOutBenchmark {
+
+	private static final int[] DEFAULT_RECIPIENT_COUNTS = { 1, 10, 100, 1000 };
+	private static final int DEFAULT_BROADCASTS = 100_000;
+
+	private static final int PAYLOAD_BYTES = 128;
+
+	/**
+	 * Broadcasting pauses while this many deliveries are yet to be received, so
+	 * that memory stays bounded when broadcasting outpaces delivery
+	 */
+	private static final long MAX_PENDING_DELIVERIES = 1_000_000;
+
+	private enum Strategy {
+		PER_RECIPIENT, FAN_OUT
+	}
+
+	/**
+	 * Counts bytes rather than messages, since broadcasts written back to back
+	 * arrive coalesced
+	 */
+	@Sharable
+	private static class DeliveryCounter extends ChannelInboundHandlerAdapter {
+
+		private final LongAdder bytesDelivered = new LongAdder();
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ByteBuf received = (ByteBuf) msg;
+			bytesDelivered.add(received.readableBytes());
+			received.release();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		int[] recipientCounts = args.length > 0
+				? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+				: DEFAULT_RECIPIENT_COUNTS;
+		int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BROADCASTS;
+
+		int eventLoops = Runtime.getRuntime().availableProcessors();
+
+		EventLoopGroup recipientsGroup = new NioEventLoopGroup(eventLoops);
+		EventLoopGroup receiversGroup = new NioEventLoopGroup(eventLoops);
+
+		DeliveryCounter deliveryCounter = new DeliveryCounter();
+
+		try {
+			Channel server = new ServerBootstrap()
+					.group(receiversGroup)
+					.channel(NioServerSocketChannel.class)
+					.childHandler(deliveryCounter)
+					.bind(InetAddress.getLoopbackAddress(), 0).sync().channel();
+
+			Bootstrap bootstrap = new Bootstrap()
+					.group(recipientsGroup)
+					.channel(NioSocketChannel.class)
+					.handler(new ChannelInitializer<Channel>() {
+						@Override
+						protected void initChannel(Channel ch) {
+							// Recipients are only written to
+						}
+					});
+
+			// Read on this thread, so that a missing configuration fails here rather than in every broadcast
+			System.out.printf("%d event loops, %d byte payloads, %,d broadcasts per run, slow consumer policy %s%n",
+					eventLoops, PAYLOAD_BYTES, broadcasts, ServerSettings.SlowConsumers.POLICY);
+
+			for (int recipientCount : recipientCounts) {
+
+				List<Channel> recipients = new ArrayList<>(recipientCount);
+				for (int i = 0; i < recipientCount; i++) {
+					recipients.add(bootstrap.connect(server.localAddress()).sync().channel());
+				}
+
+				for (Strategy strategy : Strategy.values()) {
+					run(strategy, recipients, Math.max(1, broadcasts / 10), deliveryCounter.bytesDelivered); // Warm up
+
+					double broadcastsPerSecond = run(strategy, recipients, broadcasts, deliveryCounter.bytesDelivered);
+
+					System.out.printf("%-13s %6d recipients %,14.0f broadcasts/s %,16.0f deliveries/s%n",
+							strategy, recipientCount, broadcastsPerSecond, broadcastsPerSecond * recipientCount);
+				}
+
+				for (Channel recipient : recipients) {
+					recipient.close().sync();
+				}
+			}
+
+			server.close().sync();
+		} finally {
+			recipientsGroup.shutdownGracefully();
+			receiversGroup.shutdownGracefully();
+		}
+	}
+
+	/**
+	 * @return broadcasts per second, counting until every recipient has received
+	 *         every broadcast
+	 */
+	private static double run(Strategy strategy, List<Channel> recipients, int broadcasts, LongAdder bytesDelivered) {
+
+		bytesDelivered.reset();
+
+		long expectedBytes = (long) broadcasts * recipients.size() * PAYLOAD_BYTES;
+
+		ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(PAYLOAD_BYTES).writeZero(PAYLOAD_BYTES);
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < broadcasts; i++) {
+
+			while ((long) i * recipients.size() - bytesDelivered.sum() / PAYLOAD_BYTES > MAX_PENDING_DELIVERIES) {
+				Thread.onSpinWait();
+			}
+
+			switch (strategy) {
+			case PER_RECIPIENT -> {
+				for (int j = 0; j < recipients.size(); j++) {
+					recipients.get(j).writeAndFlush(payload.retainedDuplicate());
+				}
+			}
+			case FAN_OUT -> ChannelFanOut.broadcast(payload.retain(), 0, recipients, null);
+			}
+		}
+
+		while (bytesDelivered.sum() < expectedBytes) {
+			Thread.onSpinWait();
+		}
+
+		long elapsedNanos = System.nanoTime() - start;
+
+		payload.release();
+
+		return broadcasts / (elapsedNanos / 1_000_000_000d);
+	}
+}
@@ -17,7 +17,8 @@
 package github.koukobin.ermis.server.main.java.server.util;
 
 import java.util.Properties;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -53,6 +54,16 @@ public final class EmailerService {
 	private static final Logger logger = LogManager.getLogger("server");
 	private static final Session session;
 	
+	/**
+	 * Emails are sent by their own thread, so that they neither wait behind, nor
+	 * delay, work done on behalf of clients.
+	 */
+	private static final ExecutorService emailSender = Executors.newSingleThreadExecutor((Runnable r) -> {
+		Thread thread = new Thread(r, "Thread-EmailSender");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
 	private EmailerService() {}
 	
 	static {
@@ -152,7 +163,7 @@ public final class EmailerService {
 	}
 
 	private static void sendAsyncMessage(MimeMessage message) {
-		CompletableFuture.runAsync(() -> {
+		emailSender.execute(() -> {
 			try {
 				Transport.send(message);
 			} catch (MessagingException me) {
@@ -0,0 +1,174 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server.util;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Combines flushes of messages written to a channel in quick succession into a
+ * single one; when placed right after the SslHandler, messages flushed together
+ * are encrypted into as few TLS records as possible and written with a single
+ * syscall.
+ *
+ * A flush is held back if:
+ * <ul>
+ * <li>the channel is being read from, since responses are then likely to
+ * follow; in which case the channel is flushed once reading completes</li>
+ * <li>more requests of the client are queued in the
+ * {@link BlockingWorkExecutor}, each of which will likely produce a
+ * response</li>
+ * <li>the channel was flushed shortly before, since messages are then arriving
+ * in a burst; as is the case with busy chat sessions</li>
+ * </ul>
+ * Otherwise, the channel is flushed immediately, so that a lone response is
+ * never delayed. Flushes held back are carried out once either a given number
+ * of them has accumulated or a given delay has elapsed - whichever happens
+ * first.
+ *
+ * Similar to Netty's FlushConsolidationHandler, which however only considers
+ * reads.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class FlushCoalescingHandler extends ChannelDuplexHandler {
+
+	private final int maxPendingFlushes;
+	private final long delayNanos;
+
+	private ChannelHandlerContext ctx;
+
+	private int pendingFlushes;
+	private boolean isReadInProgress;
+	private long lastFlushNanos;
+	private ScheduledFuture<?> scheduledFlush;
+
+	private final Runnable flushTask = () -> {
+		scheduledFlush = null;
+		flushIfPending();
+	};
+
+	public FlushCoalescingHandler(int maxPendingFlushes, int delayMicros) {
+		if (maxPendingFlushes < 1) {
+			throw new IllegalArgumentException("Max pending flushes must be positive: " + maxPendingFlushes);
+		}
+
+		this.maxPendingFlushes = maxPendingFlushes;
+		this.delayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+		this.lastFlushNanos = System.nanoTime() - delayNanos;
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) {
+		this.ctx = ctx;
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) {
+		flushIfPending();
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) {
+
+		if (isReadInProgress) {
+			if (++pendingFlushes >= maxPendingFlushes) {
+				flushNow();
+			}
+			return;
+		}
+
+		long now = System.nanoTime();
+		boolean isBurst = now - lastFlushNanos < delayNanos;
+
+		if (!isBurst && pendingFlushes == 0 && !BlockingWorkExecutor.hasQueuedTasks(ctx.channel())) {
+			flushNow();
+			return;
+		}
+
+		if (++pendingFlushes >= maxPendingFlushes) {
+			flushNow();
+			return;
+		}
+
+		if (scheduledFlush == null) {
+			scheduledFlush = ctx.executor().schedule(flushTask, delayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) {
+		isReadInProgress = true;
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) {
+		isReadInProgress = false;
+		flushIfPending();
+		ctx.fireChannelReadComplete();
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+		// Messages held back keep the channel from becoming writable again
+		if (!ctx.channel().isWritable()) {
+			flushIfPending();
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+		flushIfPending();
+		ctx.fireExceptionCaught(cause);
+	}
+
+	@Override
+	public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) {
+		flushIfPending();
+		ctx.disconnect(promise);
+	}
+
+	@Override
+	public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+		flushIfPending();
+		ctx.close(promise);
+	}
+
+	private void flushIfPending() {
+		if (pendingFlushes > 0) {
+			flushNow();
+		}
+	}
+
+	private void flushNow() {
+
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+
+		pendingFlushes = 0;
+		lastFlushNanos = System.nanoTime();
+		ctx.flush();
+	}
+}
@@ -0,0 +1,224 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.server.util;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import github.koukobin.ermis.common.message_types.ServerMessageType;
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+import github.koukobin.ermis.server.main.java.configs.ServerSettings.SlowConsumers.Policy;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+
+/**
+ * Decides what happens to broadcasts to a client whose channel is not writable
+ * - i.e more bytes than the write buffer's high water mark are waiting to be
+ * written to it - according to {@link ServerSettings.SlowConsumers#POLICY}, so
+ * that a stalled client cannot accumulate broadcasts without bound.
+ *
+ * Must be placed after the encoder, so that what it writes is encoded. All
+ * state is confined to the channel's event loop.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class SlowConsumerHandler extends ChannelInboundHandlerAdapter {
+
+	private static final Logger logger = LogManager.getLogger("server");
+
+	private static final AttributeKey<SlowConsumerHandler> HANDLER = AttributeKey.valueOf("slowConsumerHandler");
+
+	private static final Policy POLICY = ServerSettings.SlowConsumers.POLICY;
+	private static final int MAX_DEFERRED_MESSAGES = ServerSettings.SlowConsumers.MAX_DEFERRED_MESSAGES;
+
+	private static final LongAdder droppedMessages = new LongAdder();
+	private static final LongAdder deferredMessages = new LongAdder();
+	private static final LongAdder disconnectedClients = new LongAdder();
+	private static final AtomicInteger slowClients = new AtomicInteger();
+
+	public record Metrics(int slowClients, long droppedMessages, long deferredMessages, long disconnectedClients) {}
+
+	private record DeferredMessage(ByteBuf payload, int chatSessionID) {}
+
+	private final Queue<DeferredMessage> deferred = new ArrayDeque<>();
+	private final Set<Integer> chatSessionsMissed = new LinkedHashSet<>();
+
+	private ChannelHandlerContext ctx;
+	private boolean isSlow;
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) {
+		this.ctx = ctx;
+		ctx.channel().attr(HANDLER).set(this);
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) {
+		ctx.channel().attr(HANDLER).set(null);
+		releaseDeferred();
+		setSlow(false);
+	}
+
+	/**
+	 * Writes a broadcast to channel, unless the channel is not writable; in which
+	 * case the broadcast is dealt with according to the policy. Must be called
+	 * from the channel's event loop. Does not flush.
+	 *
+	 * @param payload       ownership is transferred
+	 * @param chatSessionID the chat session the broadcast belongs to
+	 */
+	public static void write(Channel channel, ByteBuf payload, int chatSessionID) {
+
+		SlowConsumerHandler handler = channel.attr(HANDLER).get();
+
+		if (handler == null) {
+			channel.write(payload, channel.voidPromise());
+			return;
+		}
+
+		handler.write(payload, chatSessionID);
+	}
+
+	private void write(ByteBuf payload, int chatSessionID) {
+
+		// Preserve order of messages deferred previously
+		if (ctx.channel().isWritable() && deferred.isEmpty()) {
+			ctx.write(payload, ctx.voidPromise());
+			return;
+		}
+
+		setSlow(true);
+
+		switch (POLICY) {
+		case DROP -> drop(payload, chatSessionID);
+		case DEFER -> {
+			if (chatSessionsMissed.contains(chatSessionID)) {
+				drop(payload, chatSessionID);
+				return;
+			}
+
+			if (deferred.size() >= MAX_DEFERRED_MESSAGES) {
+				// Whatever was deferred of the chat session is no longer worth sending either,
+				// since the client will have to fetch its history anyway
+				deferred.removeIf((DeferredMessage message) -> {
+					if (message.chatSessionID() == chatSessionID) {
+						message.payload().release();
+						droppedMessages.increment();
+						return true;
+					}
+
+					return false;
+				});
+
+				drop(payload, chatSessionID);
+				return;
+			}
+
+			deferred.add(new DeferredMessage(payload, chatSessionID));
+			deferredMessages.increment();
+		}
+		case DISCONNECT -> {
+			payload.release();
+			droppedMessages.increment();
+			disconnectedClients.increment();
+
+			logger.debug("Disconnecting slow client {}", ctx.channel().remoteAddress());
+			ctx.close();
+		}
+		}
+	}
+
+	private void drop(ByteBuf payload, int chatSessionID) {
+		payload.release();
+		droppedMessages.increment();
+		chatSessionsMissed.add(chatSessionID);
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+
+		if (ctx.channel().isWritable()) {
+			catchUp();
+		}
+
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	private void catchUp() {
+
+		while (!deferred.isEmpty()) {
+			if (!ctx.channel().isWritable()) {
+				ctx.flush();
+				return;
+			}
+
+			ctx.write(deferred.poll().payload(), ctx.voidPromise());
+		}
+
+		if (!chatSessionsMissed.isEmpty()) {
+			ByteBuf payload = ctx.alloc().ioBuffer(Integer.BYTES * (2 + chatSessionsMissed.size()));
+			payload.writeInt(ServerMessageType.MESSAGES_MISSED.id);
+			payload.writeInt(chatSessionsMissed.size());
+			for (Integer chatSessionID : chatSessionsMissed) {
+				payload.writeInt(chatSessionID);
+			}
+
+			chatSessionsMissed.clear();
+
+			ctx.write(payload, ctx.voidPromise());
+		}
+
+		ctx.flush();
+		setSlow(false);
+	}
+
+	private void releaseDeferred() {
+		DeferredMessage message;
+		while ((message = deferred.poll()) != null) {
+			message.payload().release();
+		}
+	}
+
+	private void setSlow(boolean isSlow) {
+
+		if (this.isSlow == isSlow) {
+			return;
+		}
+
+		this.isSlow = isSlow;
+
+		if (isSlow) {
+			slowClients.incrementAndGet();
+		} else {
+			slowClients.decrementAndGet();
+		}
+	}
+
+	public static Metrics getMetrics() {
+		return new Metrics(slowClients.get(), droppedMessages.sum(), deferredMessages.sum(), disconnectedClients.sum());
+	}
+}
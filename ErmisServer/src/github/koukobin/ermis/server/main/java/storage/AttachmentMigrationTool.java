@@ -0,0 +1,65 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Throwables;
+
+import github.koukobin.ermis.server.main.java.configs.LoggerSettings;
+import github.koukobin.ermis.server.main.java.databases.postgresql.ermis_database.ErmisDatabase;
+
+/**
+ * Moves the files of chat messages still stored in the database to the
+ * {@link AttachmentStore}. Safe to run while the server is running and to
+ * interrupt at any point; rerunning it simply continues from where it stopped.
+ *
+ * Usage: AttachmentMigrationTool [batch size]
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public class AttachmentMigrationTool {
+
+	private static final int DEFAULT_BATCH_SIZE = 100;
+
+	static {
+		LoggerSettings.initializeConfigurationFile();
+	}
+
+	public static void main(String[] args) {
+
+		Logger logger = LogManager.getLogger("database");
+
+		int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BATCH_SIZE;
+		long messagesMigrated = 0;
+
+		try (ErmisDatabase.GeneralPurposeDBConnection conn = ErmisDatabase.getGeneralPurposeConnection()) {
+			int batchMigrated;
+			while ((batchMigrated = conn.moveFilesToAttachmentStore(batchSize)) > 0) {
+				messagesMigrated += batchMigrated;
+				logger.info("Migrated {} files to attachment store", messagesMigrated);
+			}
+		} catch (Exception e) {
+			logger.fatal(Throwables.getStackTraceAsString(e));
+			System.exit(1);
+		}
+
+		logger.info("Migration complete; {} files moved to attachment store", messagesMigrated);
+		System.exit(0);
+	}
+}
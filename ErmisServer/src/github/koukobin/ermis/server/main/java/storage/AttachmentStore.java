@@ -0,0 +1,291 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.storage;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Striped;
+
+import github.koukobin.ermis.server.main.java.configs.ConfigurationsPaths;
+
+/**
+ * Content-addressed store for the files of chat messages.
+ *
+ * Every file is stored once on the local filesystem under the hex encoded
+ * SHA-256 of its content - identical files sent any number of times occupy the
+ * space of one - while the database only keeps the hash.
+ *
+ * Files are laid out as attachments/ab/cd/abcd... so that no single directory
+ * grows too large.
+ *
+ * Since a file may be referenced by any number of chat messages, it is only
+ * deleted once none references it anymore - including chat messages which
+ * have been stored but not persisted yet.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class AttachmentStore {
+
+	private static final Logger logger = LogManager.getLogger("server");
+
+	private static final Path ATTACHMENTS_FOLDER = Path.of(ConfigurationsPaths.Storage.ATTACHMENTS_FOLDER_PATH);
+
+	/**
+	 * Files are written here first and then moved to their final location, so
+	 * that a partially written file is never mistaken for a stored one
+	 */
+	private static final Path TEMP_FOLDER = ATTACHMENTS_FOLDER.resolve("tmp");
+
+	private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	/**
+	 * Serializes storing and deleting a file under the same hash, so that a file
+	 * is never deleted right after being found already stored
+	 */
+	private static final Striped<Lock> hashLocks = Striped.lock(64);
+
+	/**
+	 * Hashes of stored files mapped to the number of callers which have yet to
+	 * reference them from the database; see {@link #release(String)}
+	 */
+	private static final Map<String, Integer> pendingReferences = new ConcurrentHashMap<>();
+
+	static {
+		try {
+			Files.createDirectories(TEMP_FOLDER);
+		} catch (IOException ioe) {
+			logger.fatal(Throwables.getStackTraceAsString(ioe));
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	private AttachmentStore() {}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new RuntimeException(nsae); // Every JVM is required to support SHA-256
+		}
+	}
+
+	/**
+	 * Stores the given bytes, unless an identical file is already stored.
+	 *
+	 * The file is not deleted until {@link #release(String)} is called with the
+	 * returned hash - once a chat message referencing it has been persisted or
+	 * failed to be.
+	 *
+	 * @return the hash the file is stored under
+	 */
+	public static String store(byte[] fileBytes) throws IOException {
+
+		String hash = HexFormat.of().formatHex(newDigest().digest(fileBytes));
+
+		Lock lock = hashLocks.get(hash);
+		lock.lock();
+		try {
+			writeIfAbsent(getPath(hash), fileBytes);
+			pendingReferences.merge(hash, 1, Integer::sum);
+		} finally {
+			lock.unlock();
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Stores the thumbnail of the file stored under the given hash; unless the
+	 * file has been deleted meanwhile.
+	 */
+	public static void storeThumbnail(String hash, int dimension, byte[] thumbnailBytes) throws IOException {
+
+		Lock lock = hashLocks.get(hash);
+		lock.lock();
+		try {
+			if (Files.exists(getPath(hash))) {
+				writeIfAbsent(getThumbnailPath(hash, dimension), thumbnailBytes);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the given file into the store, unless an identical file is already
+	 * stored; in which case the file is deleted.
+	 *
+	 * Same as {@link #store(byte[])}, the file is not deleted until
+	 * {@link #release(String)} is called with the returned hash.
+	 *
+	 * @param file   a file on the same filesystem as the store
+	 * @param digest the SHA-256 digest of the file's content
+	 * @return the hash the file is stored under
+	 */
+	public static String store(Path file, byte[] digest) throws IOException {
+
+		String hash = HexFormat.of().formatHex(digest);
+
+		Path path = getPath(hash);
+
+		Lock lock = hashLocks.get(hash);
+		lock.lock();
+		try {
+			if (!Files.exists(path)) {
+				moveIntoPlace(file, path);
+			}
+
+			pendingReferences.merge(hash, 1, Integer::sum);
+		} finally {
+			Files.deleteIfExists(file);
+			lock.unlock();
+		}
+
+		return hash;
+	}
+
+	/**
+	 * To be called once for every {@link #store} - after the chat message
+	 * referencing the stored file has been persisted, or has failed or been
+	 * rejected to be - so that the file may be deleted once unreferenced.
+	 */
+	public static void release(String hash) {
+		pendingReferences.computeIfPresent(hash, (String h, Integer count) -> count == 1 ? null : count - 1);
+	}
+
+	/**
+	 * Deletes the file stored under the given hash along with its thumbnails;
+	 * unless it is pending to be referenced or is still referenced.
+	 *
+	 * @param isReferenced whether any chat message in the database still
+	 *                     references the hash
+	 * @return whether the file was deleted
+	 */
+	public static boolean deleteIfUnreferenced(String hash, Predicate<String> isReferenced) throws IOException {
+
+		Path path = getPath(hash);
+
+		Lock lock = hashLocks.get(hash);
+		lock.lock();
+		try {
+			if (pendingReferences.containsKey(hash) || isReferenced.test(hash)) {
+				return false;
+			}
+
+			try (DirectoryStream<Path> thumbnails = Files.newDirectoryStream(path.getParent(), hash + ".*.jpg")) {
+				for (Path thumbnail : thumbnails) {
+					Files.deleteIfExists(thumbnail);
+				}
+			} catch (NoSuchFileException nsfe) {
+				return false;
+			}
+
+			return Files.deleteIfExists(path);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void writeIfAbsent(Path path, byte[] bytes) throws IOException {
+
+		if (Files.exists(path)) {
+			return;
+		}
+
+		Path tempFile = Files.createTempFile(TEMP_FOLDER, null, null);
+		try {
+			Files.write(tempFile, bytes);
+			moveIntoPlace(tempFile, path);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	private static void moveIntoPlace(Path file, Path path) throws IOException {
+
+		Files.createDirectories(path.getParent());
+
+		try {
+			Files.move(file, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException faee) {
+			// Identical file stored concurrently
+		} catch (AtomicMoveNotSupportedException amnse) {
+			try {
+				Files.move(file, path);
+			} catch (FileAlreadyExistsException faee) {
+				// Identical file stored concurrently
+			}
+		}
+	}
+
+	public static byte[] read(String hash) throws IOException {
+		return Files.readAllBytes(getPath(hash));
+	}
+
+	/**
+	 * @return the thumbnail's bytes or null if no such thumbnail has been stored
+	 */
+	public static byte[] readThumbnail(String hash, int dimension) throws IOException {
+		try {
+			return Files.readAllBytes(getThumbnailPath(hash, dimension));
+		} catch (NoSuchFileException nsfe) {
+			return null;
+		}
+	}
+
+	public static boolean hasThumbnail(String hash, int dimension) {
+		return Files.exists(getThumbnailPath(hash, dimension));
+	}
+
+	/**
+	 * Thumbnails are stored next to the file they were generated from
+	 */
+	private static Path getThumbnailPath(String hash, int dimension) {
+		return getPath(hash).resolveSibling(hash + "." + dimension + ".jpg");
+	}
+
+	public static Path getPath(String hash) {
+
+		if (!HASH_PATTERN.matcher(hash).matches()) {
+			throw new IllegalArgumentException("Invalid attachment hash: " + hash);
+		}
+
+		return ATTACHMENTS_FOLDER
+				.resolve(hash.substring(0, 2))
+				.resolve(hash.substring(2, 4))
+				.resolve(hash);
+	}
+}
@@ -0,0 +1,45 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.storage;
+
+import github.koukobin.ermis.common.message_types.ContentType;
+
+/**
+ * Where the file of a chat message is to be found, without loading it.
+ *
+ * @param fileName        the name of the file, or null if the message has none
+ * @param contentType     the message's content type
+ * @param attachmentHash  the file's hash in the {@link AttachmentStore}, or null
+ *                        if the message predates it
+ * @param legacyFileBytes the file's bytes if it is still stored in the database;
+ *                        otherwise null
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public record StoredFile(byte[] fileName, ContentType contentType, String attachmentHash, byte[] legacyFileBytes) {
+
+	public boolean isInAttachmentStore() {
+		return attachmentHash != null;
+	}
+
+	/**
+	 * @return false if the message has no file - i.e it is a text message
+	 */
+	public boolean hasFile() {
+		return attachmentHash != null || legacyFileBytes != null;
+	}
+}
@@ -0,0 +1,286 @@
+/* Copyright (C) 2024 Ilias Koukovinis <ilias.koukovinis@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package github.koukobin.ermis.server.main.java.storage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import github.koukobin.ermis.common.util.EmptyArrays;
+import github.koukobin.ermis.server.main.java.configs.ServerSettings;
+
+/**
+ * Generates downscaled JPEG variants of images in the {@link AttachmentStore},
+ * which are stored next to the original, and keeps the most requested ones in
+ * memory.
+ *
+ * @author Ilias Koukovinis
+ *
+ */
+public final class Thumbnails {
+
+	private static final Logger logger = LogManager.getLogger("server");
+
+	private static final int[] DIMENSIONS = ServerSettings.Thumbnails.DIMENSIONS;
+
+	private static final float JPEG_QUALITY = 0.8f;
+
+	/**
+	 * Images larger than this - after subsampling - are not decoded, so that a
+	 * maliciously crafted image cannot exhaust the server's memory
+	 */
+	private static final long MAX_DECODED_PIXELS = 40_000_000L;
+
+	/**
+	 * Keyed by hash and dimension. Files that are not images the server can read
+	 * are cached as an empty array, so that they are not attempted again.
+	 */
+	private static final Cache<String, byte[]> cache = CacheBuilder.newBuilder()
+			.maximumWeight(ServerSettings.Thumbnails.CACHE_BYTES)
+			.weigher((String key, byte[] thumbnail) -> thumbnail.length)
+			.build();
+
+	private static final ExecutorService generators;
+
+	static {
+		AtomicInteger threadCount = new AtomicInteger();
+		generators = Executors.newFixedThreadPool(ServerSettings.Thumbnails.GENERATOR_THREADS, (Runnable r) -> {
+			Thread thread = new Thread(r, "Thread-ThumbnailGenerator-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+
+	private Thumbnails() {}
+
+	/**
+	 * Generates the thumbnails of the file stored under the given hash in the
+	 * background.
+	 */
+	public static void generateAsync(String hash) {
+		try {
+			generators.execute(() -> {
+				try {
+					generate(hash);
+				} catch (IOException ioe) {
+					logger.error(Throwables.getStackTraceAsString(ioe));
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			logger.debug("Thumbnail generation submitted after generators have been shut down");
+		}
+	}
+
+	/**
+	 * @return the dimension of the smallest variant not smaller than the one
+	 *         requested; or the largest variant if there is none
+	 */
+	public static int selectDimension(int requestedDimension) {
+
+		for (int i = 0; i < DIMENSIONS.length; i++) {
+			if (DIMENSIONS[i] >= requestedDimension) {
+				return DIMENSIONS[i];
+			}
+		}
+
+		return DIMENSIONS[DIMENSIONS.length - 1];
+	}
+
+	/**
+	 * Generates the thumbnail if it has not been already; hence it may block for
+	 * a while.
+	 *
+	 * @param dimension one of the dimensions returned by
+	 *                  {@link #selectDimension(int)}
+	 * @return the thumbnail or an empty array if the file is not an image the
+	 *         server can read
+	 */
+	public static byte[] get(String hash, int dimension) throws IOException {
+
+		String key = hash + "." + dimension;
+
+		byte[] thumbnail = cache.getIfPresent(key);
+
+		if (thumbnail == null) {
+			thumbnail = AttachmentStore.readThumbnail(hash, dimension);
+
+			if (thumbnail == null) {
+				generate(hash);
+				thumbnail = AttachmentStore.readThumbnail(hash, dimension);
+			}
+
+			if (thumbnail == null) {
+				thumbnail = EmptyArrays.EMPTY_BYTE_ARRAY;
+			}
+
+			cache.put(key, thumbnail);
+		}
+
+		return thumbnail;
+	}
+
+	/**
+	 * Discards the thumbnails of a deleted file which are kept in memory.
+	 */
+	public static void invalidate(String hash) {
+		for (int dimension : DIMENSIONS) {
+			cache.invalidate(hash + "." + dimension);
+		}
+	}
+
+	/**
+	 * Generates every variant that has not been stored yet. The image is decoded
+	 * once for all of them.
+	 */
+	private static void generate(String hash) throws IOException {
+
+		BufferedImage image = null;
+
+		for (int dimension : DIMENSIONS) {
+
+			if (AttachmentStore.hasThumbnail(hash, dimension)) {
+				continue;
+			}
+
+			if (image == null) {
+				image = decode(AttachmentStore.getPath(hash), DIMENSIONS[DIMENSIONS.length - 1]);
+
+				if (image == null) {
+					return;
+				}
+			}
+
+			AttachmentStore.storeThumbnail(hash, dimension, encode(scale(image, dimension)));
+		}
+	}
+
+	/**
+	 * Decodes image skipping pixels which would anyway be discarded when scaling
+	 * it down to the given dimension; so that large photos are never fully
+	 * decoded in memory.
+	 *
+	 * @return the image or null if the file is not an image that can be read
+	 */
+	private static BufferedImage decode(Path file, int maxDimension) throws IOException {
+
+		try (ImageInputStream iis = ImageIO.createImageInputStream(file.toFile())) {
+
+			if (iis == null) {
+				return null;
+			}
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+
+			if (!readers.hasNext()) {
+				return null;
+			}
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+
+				// Keep twice the pixels needed so that scaling afterwards remains smooth
+				int subsampling = Math.max(1, Math.max(width, height) / (maxDimension * 2));
+
+				if ((long) (width / subsampling) * (height / subsampling) > MAX_DECODED_PIXELS) {
+					return null;
+				}
+
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} catch (IIOException iioe) {
+			logger.debug("Could not decode image {}: {}", file.getFileName(), iioe.getMessage());
+			return null;
+		}
+	}
+
+	private static BufferedImage scale(BufferedImage image, int dimension) {
+
+		double scale = Math.min(1d, (double) dimension / Math.max(image.getWidth(), image.getHeight()));
+
+		int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+		BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D graphics = thumbnail.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+			// JPEG has no alpha channel; transparent areas are painted white
+			graphics.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+		} finally {
+			graphics.dispose();
+		}
+
+		return thumbnail;
+	}
+
+	private static byte[] encode(BufferedImage thumbnail) throws IOException {
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(JPEG_QUALITY);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(thumbnail, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+
+		return baos.toByteArray();
+	}
+}
@@ -34,6 +34,7 @@ CREATE TABLE IF NOT EXISTS user_profiles (
     display_name VARCHAR(DISPLAY_LENGTH) NOT NULL,
     about VARCHAR(128) NOT NULL,
     profile_photo BYTEA,
+    profile_photo_hash CHAR(64), -- SHA-256 of profile_photo, by which clients tell whether they already have it
     last_updated_at TIMESTAMP DEFAULT now(),
     display_name_updated_at TIMESTAMP DEFAULT now(),
     about_updated_at TIMESTAMP DEFAULT now(),
@@ -44,6 +45,11 @@ CREATE TABLE IF NOT EXISTS user_profiles (
 CREATE INDEX IF NOT EXISTS user_profiles_display_name_index ON user_profiles (display_name);
 CREATE INDEX IF NOT EXISTS user_profiles_about_index ON user_profiles (about);
 
+-- Migrate user profiles tables created before icons were identified by their hash
+ALTER TABLE user_profiles ADD COLUMN IF NOT EXISTS profile_photo_hash CHAR(64);
+UPDATE user_profiles SET profile_photo_hash = encode(sha256(profile_photo), 'hex')
+WHERE profile_photo IS NOT NULL AND octet_length(profile_photo) > 0 AND profile_photo_hash IS NULL;
+
 -- Create device type enum table
 --DO $$
 --BEGIN
@@ -94,13 +100,30 @@ CREATE TABLE IF NOT EXISTS chat_messages (
     client_id INTEGER NOT NULL REFERENCES users (client_id) ON DELETE CASCADE,
     text BYTEA,
     file_name TEXT,
-    file_bytes BYTEA,
+    file_bytes BYTEA, -- Legacy; files are kept in the attachment store and referenced by attachment_hash
+    attachment_hash CHAR(64),
     content_type INTEGER NOT NULL,
     PRIMARY KEY (chat_session_id, message_id),
-    CHECK (text IS NOT NULL OR file_bytes IS NOT NULL),
+    CONSTRAINT chat_messages_content_check CHECK (text IS NOT NULL OR file_bytes IS NOT NULL OR attachment_hash IS NOT NULL),
     CONSTRAINT fk_chat_session FOREIGN KEY (chat_session_id) REFERENCES chat_sessions (chat_session_id),
     CONSTRAINT fk_sender_client FOREIGN KEY (client_id) REFERENCES users (client_id)
 );
 
 CREATE INDEX IF NOT EXISTS message_id_index ON chat_messages (message_id);
 
+-- Migrate chat messages tables created before the attachment store
+ALTER TABLE chat_messages ADD COLUMN IF NOT EXISTS attachment_hash CHAR(64);
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'chat_messages_content_check') THEN
+        ALTER TABLE chat_messages DROP CONSTRAINT IF EXISTS chat_messages_check;
+        ALTER TABLE chat_messages ADD CONSTRAINT chat_messages_content_check CHECK (text IS NOT NULL OR file_bytes IS NOT NULL OR attachment_hash IS NOT NULL);
+    END IF;
+END
+$$;
+
+CREATE INDEX IF NOT EXISTS chat_messages_legacy_file_bytes_index ON chat_messages (chat_session_id, message_id) WHERE file_bytes IS NOT NULL;
+
+-- Files are only deleted from the attachment store once no message references them
+CREATE INDEX IF NOT EXISTS chat_messages_attachment_hash_index ON chat_messages (attachment_hash) WHERE attachment_hash IS NOT NULL;